@@ -137,7 +137,7 @@ constructor(override val type: String, private val encode: Boolean = true) : Cod
             return key?.let { k ->
                 appender.append(CQ_SPLIT).append(k).append(CQ_KV)
                 if (value != null) {
-                    appender.append(CQEncoder.encodeParams(value.toString()))
+                    CQEncoder.encodeParamsTo(appender, value as? CharSequence ?: value.toString())
                 }
                 this@StringCodeBuilder
             }?.also { this@StringCodeBuilder.key = null }
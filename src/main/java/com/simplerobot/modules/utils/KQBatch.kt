@@ -0,0 +1,149 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQBatch.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+
+/**
+ * 批量并行处理消息的工具。
+ *
+ * 将消息列表按索引范围切分为多个任务, 结果写入与输入等长的数组中, 因此结果的顺序总是与输入一致。
+ * 不支持随机访问的列表(例如[java.util.LinkedList])会先被复制为[ArrayList], 避免按索引访问时重复遍历。
+ * 每个线程在解析时使用各自缓存的[CqTokenizer], 不存在共享的可变状态。
+ *
+ * @since 1.8.2
+ */
+internal object CqBatch {
+
+    /** 每个并行线程大约分得的任务数量, 用于平衡各个消息之间的长度差异 */
+    private const val TASKS_PER_THREAD = 8
+
+    /**
+     * 使用[executor]时默认的任务数量
+     */
+    fun defaultTaskCount(): Int = Runtime.getRuntime().availableProcessors() * TASKS_PER_THREAD
+
+    /**
+     * 在[ForkJoinPool]中以[parallelism]的并行度对[texts]中的每一条消息执行[mapper]。
+     * 如果[parallelism]与公共池的并行度相同则使用[ForkJoinPool.commonPool],
+     * 否则会在此次调用中创建一个临时的池, 并在结束时关闭。
+     */
+    fun <R> map(texts: List<String>, parallelism: Int, mapper: (String) -> R): List<R> {
+        if (parallelism < 1) {
+            throw IllegalArgumentException("parallelism must > 0, but $parallelism")
+        }
+        if (parallelism == 1 || texts.size <= 1) {
+            return texts.mapTo(ArrayList(texts.size), mapper)
+        }
+        if (parallelism == ForkJoinPool.getCommonPoolParallelism()) {
+            return map(texts, ForkJoinPool.commonPool(), mapper)
+        }
+        val pool = ForkJoinPool(parallelism)
+        try {
+            return map(texts, pool, mapper)
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    /**
+     * 在[pool]中对[texts]中的每一条消息执行[mapper]。任务的粒度由[pool]的并行度决定。
+     */
+    fun <R> map(texts: List<String>, pool: ForkJoinPool, mapper: (String) -> R): List<R> {
+        val size = texts.size
+        val parallelism = pool.parallelism
+        if (parallelism == 1 || size <= 1) {
+            return texts.mapTo(ArrayList(size), mapper)
+        }
+        val results = arrayOfNulls<Any?>(size)
+        val threshold = maxOf(1, size / (parallelism * TASKS_PER_THREAD))
+        pool.invoke(MapTask(randomAccess(texts), results, mapper, 0, size, threshold))
+        return results.asResultList()
+    }
+
+    /**
+     * 将[texts]切分为[taskCount]个任务提交至[executor], 对每一条消息执行[mapper], 并阻塞至全部完成。
+     * 不能在[executor]的线程中调用, 否则当前线程所占用的线程无法执行任务, 在有界的线程池中可能导致死锁。
+     */
+    fun <R> map(texts: List<String>, executor: Executor, taskCount: Int, mapper: (String) -> R): List<R> {
+        if (taskCount < 1) {
+            throw IllegalArgumentException("taskCount must > 0, but $taskCount")
+        }
+        val size = texts.size
+        if (size == 0) {
+            return emptyList()
+        }
+        val list = randomAccess(texts)
+        val results = arrayOfNulls<Any?>(size)
+        val tasks = minOf(size, taskCount)
+        val futures = Array(tasks) { t ->
+            val from = (size.toLong() * t / tasks).toInt()
+            val to = (size.toLong() * (t + 1) / tasks).toInt()
+            CompletableFuture.runAsync(Runnable {
+                for (i in from until to) {
+                    results[i] = mapper(list[i])
+                }
+            }, executor)
+        }
+        try {
+            CompletableFuture.allOf(*futures).join()
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+        return results.asResultList()
+    }
+
+    /**
+     * 不支持随机访问的列表复制为[ArrayList]
+     */
+    private fun randomAccess(texts: List<String>): List<String> =
+        if (texts is RandomAccess) texts else ArrayList(texts)
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <R> Array<Any?>.asResultList(): List<R> = asList() as List<R>
+
+    /**
+     * 对 \[[from], [to]) 范围内的消息执行转化的任务, 超过[threshold]时二分。
+     */
+    private class MapTask<R>(
+        private val texts: List<String>,
+        private val results: Array<Any?>,
+        private val mapper: (String) -> R,
+        private val from: Int,
+        private val to: Int,
+        private val threshold: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= threshold) {
+                for (i in from until to) {
+                    results[i] = mapper(texts[i])
+                }
+                return
+            }
+            val mid = (from + to) ushr 1
+            invokeAll(
+                MapTask(texts, results, mapper, from, mid, threshold),
+                MapTask(texts, results, mapper, mid, to, threshold)
+            )
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQChunkParser.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 可分段输入的增量解析器。
+ *
+ * 通过[feed]不断输入消息的片段(例如网络帧或文件读取的缓冲区), 每当一段文本或一个CQ码完整时便立即推送给[handler]。
+ * 被片段边界截断的CQ码头(`[CQ:`)、CQ码、键值对以及转义符(例如`&#91;`)会被保留, 直到后续的片段使其完整。
+ * 所有片段输入完毕后需要调用[finish], 剩余的不完整内容会按照文本处理。
+ * 与[CqStreamParser]相同, 超过[CqStreamParser.DEFAULT_MAX_CODE_LENGTH]个字符仍未结束的CQ码会被当作文本推送。
+ *
+ * 最终的事件序列与对完整消息使用[CqStreamParser]相同, 只是一段连续的文本可能会被拆分为多次[CqEventHandler.onText]。
+ *
+ * 调用[finish]之后实例可以继续用于下一条消息。实例 **线程不安全**。
+ *
+ * ```
+ * val parser = CqChunkParser(handler)
+ * parser.feed("hello[CQ:at,q")
+ * parser.feed("q=123]&#9")
+ * parser.feed("1;")
+ * parser.finish()
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqChunkParser(
+    /** 事件回调 */
+    val handler: CqEventHandler
+) {
+
+    private val parser = CqStreamParser(handler)
+
+    /** 尚未处理的内容 */
+    private val window = CqCharWindow(CharArray(INITIAL_CAPACITY))
+
+    /** 窗口中的内容是否以一个完整的CQ码头开头, 即正在等待CQ码的结尾 */
+    private var inCode = false
+
+    /** 尚未处理的字符数量 */
+    val pendingLength: Int
+        get() = window.length
+
+    /**
+     * 输入一个片段
+     */
+    fun feed(chunk: CharSequence) {
+        feed(chunk, 0, chunk.length)
+    }
+
+    /**
+     * 输入[chunk]中 \[[start], [end]) 范围内的片段
+     */
+    fun feed(chunk: CharSequence, start: Int, end: Int) {
+        val window = this.window
+        window.ensureCapacity(window.length + end - start)
+        val array = window.array
+        var length = window.length
+        // 正在等待CQ码的结尾时, 只有遇到了']'才需要重新解析
+        var close = !inCode
+        for (i in start until end) {
+            val c = chunk[i]
+            if (c == ']') {
+                close = true
+            }
+            array[length++] = c
+        }
+        window.length = length
+        if (close || length >= parser.maxCodeLength) {
+            process()
+        }
+    }
+
+    /**
+     * 输入字符数组[chunk]中从[offset]开始的[length]个字符
+     */
+    fun feed(chunk: CharArray, offset: Int, length: Int) {
+        val window = this.window
+        window.ensureCapacity(window.length + length)
+        System.arraycopy(chunk, offset, window.array, window.length, length)
+        window.length += length
+        if (!inCode || window.length >= parser.maxCodeLength ||
+            CqScanner.indexOf(window, ']', window.length - length, window.length) >= 0) {
+            process()
+        }
+    }
+
+    private fun process() {
+        val window = this.window
+        val consumed = parser.process(window, 0, window.length, false)
+        window.compact(consumed)
+        inCode = window.length >= CQ_HEAD.length && CqScanner.regionMatches(window, 0, CQ_HEAD)
+    }
+
+    /**
+     * 结束当前消息, 将剩余的内容全部推送。之后可以继续输入下一条消息。
+     */
+    fun finish() {
+        val window = this.window
+        try {
+            parser.process(window, 0, window.length, true)
+        } finally {
+            window.length = 0
+            inCode = false
+            parser.reset()
+            if (window.array.size > MAX_CACHED_CAPACITY) {
+                window.array = CharArray(INITIAL_CAPACITY)
+            }
+        }
+    }
+
+    private companion object {
+        const val INITIAL_CAPACITY = 256
+        /** 超过此容量的窗口在[finish]后会被释放 */
+        const val MAX_CACHED_CAPACITY = 8192
+    }
+}
@@ -54,6 +54,69 @@ interface KQCode: Map<String, String>, CharSequence {
      */
     fun getNoDecode(key: String): String?
 
+    /**
+     * 获取参数并解析为[Long], 例如qq号、表情id等。
+     * @throws NoSuchElementException 不存在此参数
+     * @throws NumberFormatException 参数不是一个合法的整数
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun getLong(key: String): Long {
+        val value = getNoDecode(key) ?: throw NoSuchElementException("key: $key")
+        return CqScanner.parseLong(value, 0, value.length)
+    }
+
+    /**
+     * 获取参数并解析为[Long], 如果不存在此参数或者参数不是一个合法的整数则返回[default]
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun getLong(key: String, default: Long): Long {
+        val value = getNoDecode(key) ?: return default
+        return CqScanner.parseLong(value, 0, value.length, default)
+    }
+
+    /**
+     * 获取参数并解析为[Int]
+     * @throws NoSuchElementException 不存在此参数
+     * @throws NumberFormatException 参数不是一个合法的整数
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun getInt(key: String): Int {
+        val value = getNoDecode(key) ?: throw NoSuchElementException("key: $key")
+        return CqScanner.parseInt(value, 0, value.length)
+    }
+
+    /**
+     * 获取参数并解析为[Int], 如果不存在此参数或者参数不是一个合法的整数则返回[default]
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun getInt(key: String, default: Int): Int {
+        val value = getNoDecode(key) ?: return default
+        return CqScanner.parseInt(value, 0, value.length, default)
+    }
+
+    /**
+     * 得到一个参数[key]的值为[value]的新的不可变[KQCode]实例, 当前实例不会发生变化。
+     * [value]为反转义后的值。
+     *
+     * 默认实现会经过[mutable]与[immutable]进行转化, 实现类应当尽可能的直接构建新的实例。
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun with(key: String, value: String): KQCode = mutable().also { it[key] = value }.immutable()
+
+    /**
+     * 得到一个不存在参数[key]的新的不可变[KQCode]实例, 当前实例不会发生变化。
+     * 如果本就不存在此参数, 则返回当前实例。
+     * @since 1.8.2
+     */
+    @JvmDefault
+    fun without(key: String): KQCode =
+        if (!containsKey(key)) this else mutable().also { it.remove(key) }.immutable()
+
     /**
      * 从[KQCode]转化为[com.forte.qqrobot.beans.cqcode.CQCode]
      */
@@ -163,6 +226,18 @@ data class EmptyKQCode(override val type: String): KQCode {
      * 转化为不可变类型[KQCode]
      */
     override fun immutable(): KQCode = this
+
+    /**
+     * 直接拼接为仅有一个参数的[FastKQCode]
+     */
+    override fun with(key: String, value: String): KQCode {
+        val builder = StringBuilder(codeText.length + key.length + value.length + 2)
+            .append(CQ_HEAD).append(type).append(CQ_SPLIT).append(key).append(CQ_KV)
+        CQEncoder.encodeParamsTo(builder, value)
+        return FastKQCode.byCode(builder.append(CQ_END).toString())
+    }
+
+    override fun without(key: String): KQCode = this
     override val entries: Set<Map.Entry<String, String>> = emptySet()
     override val keys: Set<String> = emptySet()
     override val size: Int = 0
@@ -20,6 +20,10 @@ package com.simplerobot.modules.utils
 
 import com.simplerobot.modules.utils.codes.FastKQCode
 import com.simplerobot.modules.utils.codes.MapKQCode
+import com.simplerobot.modules.utils.codes.ParamMapBuilder
+import java.io.Reader
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 
 /*
 & -> &amp;
@@ -33,8 +37,6 @@ import com.simplerobot.modules.utils.codes.MapKQCode
 , -> &#44;
  */
 
-private val CQ_SPLIT_REGEX: Regex = Regex(CQ_KV)
-
 /** CQ Decoder */
 @Suppress("MemberVisibilityCanBePrivate")
 object CQDecoder {
@@ -44,31 +46,40 @@ object CQDecoder {
         get() = this
 
     /** 非CQ码文本消息解义 */
-    fun decodeText(str: String): String =
-        str.replace("&#91;", "[")
-            .replace("&#93;", "]")
-            .replace("&#09;", "\t")
-            .replace("&#10;", "\r")
-            .replace("&#13;", "\n")
-            .replace("&amp;", "&")
+    fun decodeText(str: String): String = CqEscapes.decode(str, CqEscapes.TEXT_DECODE_TABLE)
 
     /** 非CQ码文本消息解义，如果[str]为null则返回null */
     fun decodeTextOrNull(str: String?): String? = str?.let { decodeText(it) }
 
 
     /** CQ码参数值消息解义 */
-    fun decodeParams(str: String): String =
-        str.replace("&#91;", "[")
-            .replace("&#93;", "]")
-            .replace("&#44;", ",")
-            .replace("&#09;", "\t")
-            .replace("&#10;", "\r")
-            .replace("&#13;", "\n")
-            .replace("&amp;", "&")
+    fun decodeParams(str: String): String = CqEscapes.decode(str, CqEscapes.PARAMS_DECODE_TABLE)
 
     /** CQ码参数值消息解义，如果[str]为null则返回null */
     fun decodeParamsOrNull(str: String?): String? = str?.let { decodeParams(it) }
 
+    /**
+     * 非CQ码文本消息解义，将[str]中 \[[start], [end]) 范围内的字符解义后直接追加至[out]中。
+     * @return [out]
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun <A : Appendable> decodeTextTo(out: A, str: CharSequence, start: Int = 0, end: Int = str.length): A {
+        CqEscapes.decodeTo(out, str, start, end, CqEscapes.TEXT_DECODE_TABLE)
+        return out
+    }
+
+    /**
+     * CQ码参数值消息解义，将[str]中 \[[start], [end]) 范围内的字符解义后直接追加至[out]中。
+     * @return [out]
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun <A : Appendable> decodeParamsTo(out: A, str: CharSequence, start: Int = 0, end: Int = str.length): A {
+        CqEscapes.decodeTo(out, str, start, end, CqEscapes.PARAMS_DECODE_TABLE)
+        return out
+    }
+
 }
 
 /** CQ Encoder */
@@ -80,29 +91,39 @@ object CQEncoder {
         get() = this
 
     /** 非CQ码文本消息转义 */
-    fun encodeText(str: String): String =
-        str.replace("&", "&amp;")
-            .replace("[", "&#91;")
-            .replace("]", "&#93;")
-            .replace("\t", "&#09;")
-            .replace("\r", "&#10;")
-            .replace("\n", "&#13;")
+    fun encodeText(str: String): String = CqEscapes.encode(str)
 
     /** 非CQ码文本消息转义。如果[str]为null则返回null */
     fun encodeTextOrNull(str: String?): String? = str?.let { encodeText(it) }
 
     /** CQ码参数值消息转义 */
-    fun encodeParams(str: String): String =
-        str.replace("&", "&amp;")
-            .replace("[", "&#91;")
-            .replace("]", "&#93;")
-            .replace("\t", "&#09;")
-            .replace("\r", "&#10;")
-            .replace("\n", "&#13;")
+    fun encodeParams(str: String): String = CqEscapes.encode(str)
 
     /** CQ码参数值消息转义。如果[str]为null则返回null */
     fun encodeParamsOrNull(str: String?): String? = str?.let { encodeParams(it) }
 
+    /**
+     * 非CQ码文本消息转义，将[str]中 \[[start], [end]) 范围内的字符转义后直接追加至[out]中。
+     * @return [out]
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun <A : Appendable> encodeTextTo(out: A, str: CharSequence, start: Int = 0, end: Int = str.length): A {
+        CqEscapes.encodeTo(out, str, start, end)
+        return out
+    }
+
+    /**
+     * CQ码参数值消息转义，将[str]中 \[[start], [end]) 范围内的字符转义后直接追加至[out]中。
+     * @return [out]
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun <A : Appendable> encodeParamsTo(out: A, str: CharSequence, start: Int = 0, end: Int = str.length): A {
+        CqEscapes.encodeTo(out, str, start, end)
+        return out
+    }
+
 }
 
 
@@ -157,16 +178,9 @@ object KQCodeUtils {
      */
     @JvmOverloads
     fun toCq(type: String, encode: Boolean = true, vararg pair: Pair<String, Any>): String {
-        val pre = "${CQ_HEAD}$type"
-        return if (pair.isNotEmpty()) {
-            pair.joinToString(CQ_SPLIT, "$pre$CQ_SPLIT", CQ_END) {
-                "${it.first}$CQ_KV${
-                    if (encode) CQEncoder.encodeParams(it.second.toString()) else it.second
-                }"
-            }
-        } else {
-            pre + CQ_END
-        }
+        val sb = StringBuilder(CQ_HEAD).append(type)
+        pair.forEach { sb.appendParam(it.first, it.second, encode) }
+        return sb.append(CQ_END).toString()
     }
 
     /**
@@ -175,19 +189,22 @@ object KQCodeUtils {
      */
     @JvmOverloads
     fun toCq(type: String, encode: Boolean = true, map: Map<String, *>): String {
-        val pre = "$CQ_HEAD$type"
-        return if (map.isNotEmpty()) {
-            map.entries.joinToString(
-                CQ_SPLIT,
-                "$pre$CQ_SPLIT",
-                CQ_END
-            ) {
-                "${it.key}$CQ_KV${
-                    if (encode) CQEncoder.encodeParams(it.value.toString()) else it.value
-                }"
-            }
+        val sb = StringBuilder(CQ_HEAD).append(type)
+        map.forEach { (k, v) -> sb.appendParam(k, v, encode) }
+        return sb.append(CQ_END).toString()
+    }
+
+    /**
+     * 向[StringBuilder]中追加一个`,key=value`参数。
+     * 如果[encode] == true, 则[value]会被直接转义至此[StringBuilder]中而不会产生中间字符串。
+     */
+    private fun StringBuilder.appendParam(key: String, value: Any?, encode: Boolean) {
+        append(CQ_SPLIT).append(key).append(CQ_KV)
+        val v: CharSequence = value as? CharSequence ?: value.toString()
+        if (encode) {
+            CQEncoder.encodeParamsTo(this, v)
         } else {
-            pre + CQ_END
+            append(v)
         }
     }
 
@@ -202,10 +219,19 @@ object KQCodeUtils {
         // 如果参数为空
         return if (params.isNotEmpty()) {
             if (encode) {
-                toCq(type, encode, *params.map {
-                    val split: List<String> = it.split(CQ_SPLIT_REGEX, 2)
-                    split[0] to split[1]
-                }.toTypedArray())
+                // 只切割第一个`=`并直接转义至StringBuilder中, 不存在`=`的参数原样拼接
+                val sb = StringBuilder(CQ_HEAD).append(type)
+                for (param in params) {
+                    sb.append(CQ_SPLIT)
+                    val kv = param.indexOf('=')
+                    if (kv < 0) {
+                        sb.append(param)
+                    } else {
+                        sb.append(param, 0, kv + 1)
+                        CQEncoder.encodeParamsTo(sb, param, kv + 1, param.length)
+                    }
+                }
+                sb.append(CQ_END).toString()
             } else {
                 // 不需要转义, 直接进行字符串拼接
                 "$CQ_HEAD$type$CQ_SPLIT${params.joinToString(CQ_SPLIT)}$CQ_END"
@@ -231,7 +257,9 @@ object KQCodeUtils {
         return if (params.isEmpty()) {
             EmptyKQCode(type)
         } else {
-            MapKQCode(type, params.asSequence().map { it.key to it.value.toString() }.toMap())
+            val builder = ParamMapBuilder(params.size)
+            params.forEach { (k, v) -> builder.put(k, v.toString()) }
+            MapKQCode(builder.build(), type)
         }
     }
 
@@ -245,7 +273,9 @@ object KQCodeUtils {
         return if (params.isEmpty()) {
             EmptyKQCode(type)
         } else {
-            MapKQCode(type, params.asSequence().map { it.first to it.second.toString() }.toMap())
+            val builder = ParamMapBuilder(params.size)
+            params.forEach { (k, v) -> builder.put(k, v.toString()) }
+            MapKQCode(builder.build(), type)
         }
     }
 
@@ -286,46 +316,43 @@ object KQCodeUtils {
      * @since 1.8.0
      */
     inline fun <T> split(text: String, postMap: String.() -> T): List<T> {
-        // 准备list
-        val list: MutableList<T> = mutableListOf()
-
-        val het = CQ_HEAD
-        val ent = CQ_END
-
-        // 查找最近一个[CQ:字符
-        var h = text.indexOf(het)
-        var le = -1
-        var e = -1
-        while (h >= 0) {
-            // 从头部开始查询尾部
-            if (e != -1) {
-                le = e
+        val tokenizer = CqTokenizer.acquire()
+        try {
+            val count = tokenizer.tokenize(text)
+            if (count == 0) {
+                return mutableListOf(text.postMap())
             }
-            e = text.indexOf(ent, h)
-            h = if (e < 0) {
-                // 没找到，查找下一个[CQ:
-                text.indexOf(het, h + 1)
-            } else {
-                // 找到了，截取。
-                // 首先截取前一段
-                if (h > 0 && (le + 1) != h) {
-                    list.add(text.substring(le + 1, h).postMap())
-                }
-                // 截取cq码
-                list.add(text.substring(h, e + 1).postMap())
-                // 重新查询
-                text.indexOf(het, e)
+            val list: MutableList<T> = ArrayList(count)
+            for (i in 0 until count) {
+                list.add(text.substring(tokenizer.start(i), tokenizer.end(i)).postMap())
             }
+            return list
+        } finally {
+            CqTokenizer.release(tokenizer)
         }
-        if (list.isEmpty()) {
-            list.add(text.postMap())
-        }
-        if (e != text.length - 1) {
-            if (e >= 0) {
-                list.add(text.substring(e + 1, text.length).postMap())
+    }
+
+    /**
+     * 将一段字符串根据字符串与CQ码来进行切割, 得到的结果为不复制字符的[CqSpan]视图。
+     * 与[split]的切割结果相同。
+     *
+     * @since 1.8.2
+     */
+    fun splitSpans(text: String): List<CqSpan> {
+        val tokenizer = CqTokenizer.acquire()
+        try {
+            val count = tokenizer.tokenize(text)
+            if (count == 0) {
+                return mutableListOf(CqSpan(text, 0, text.length))
+            }
+            val list: MutableList<CqSpan> = ArrayList(count)
+            for (i in 0 until count) {
+                list.add(CqSpan(text, tokenizer.start(i), tokenizer.end(i)))
             }
+            return list
+        } finally {
+            CqTokenizer.release(tokenizer)
         }
-        return list
     }
 
     /**
@@ -339,29 +366,28 @@ object KQCodeUtils {
         if (index < 0) {
             throw IndexOutOfBoundsException("$index")
         }
+        val code = findCode(text, type, index)
+        return if (code < 0) null else text.substring(CqScanner.codeStartOf(code), CqScanner.codeEndOf(code) + 1)
+    }
 
-        var i = -1
-        var ti: Int
-        var e = 0
-        val het = CQ_HEAD + type
-        val ent = CQ_END
-
-        do {
-            ti = text.indexOf(het, e)
-            if (ti >= 0) {
-                e = text.indexOf(ent, ti)
-                if (e >= 0) {
-                    i++
-                } else {
-                    e = ti + 1
-                }
+    /**
+     * 寻找第[index]个类型为[type]的CQ码, 查找过程中不会产生任何对象。
+     * @return `(开头索引 shl 32) or 结尾(]字符)索引`, 不存在则返回-1
+     */
+    private fun findCode(text: String, type: String, index: Int): Long {
+        if (index < 0) {
+            return -1
+        }
+        val length = text.length
+        var i = 0
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            if (CqScanner.isType(text, CqScanner.codeStartOf(code), type) && i++ == index) {
+                return code
             }
-        } while (ti >= 0 && i < index)
-        return if (i == index) {
-            text.substring(ti, e + 1)
-        } else {
-            null
+            code = CqScanner.nextCode(text, CqScanner.codeEndOf(code) + 1, length)
         }
+        return -1
     }
 
     /**
@@ -387,25 +413,29 @@ object KQCodeUtils {
      */
     @JvmOverloads
     inline fun <T> getCqs(text: String, type: String = "", map: (String) -> T): List<T> {
-        var ti: Int
-        var e = 0
-        val het = CQ_HEAD + type
-        val ent = CQ_END
-        // temp list
         val list: MutableList<T> = mutableListOf()
-
-        do {
-            ti = text.indexOf(het, e)
-            if (ti >= 0) {
-                e = text.indexOf(ent, ti)
-                if (e >= 0) {
-                    list.add(map(text.substring(ti, e + 1)))
-                } else {
-                    e = ti + 1
+        val tokenizer = CqTokenizer.acquire()
+        try {
+            val count = tokenizer.tokenize(text)
+            for (i in 0 until count) {
+                if (tokenizer.isCode(i, type)) {
+                    list.add(map(text.substring(tokenizer.start(i), tokenizer.end(i))))
                 }
             }
-        } while (ti >= 0 && e >= 0)
+        } finally {
+            CqTokenizer.release(tokenizer)
+        }
+        return list
+    }
 
+    /**
+     * 提取字符串中的全部CQ码, 得到的结果为不复制字符的[CqSpan]视图。
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun getCqSpans(text: String, type: String = ""): List<CqSpan> {
+        val list: MutableList<CqSpan> = mutableListOf()
+        getCqSpanIter(text, type).forEach { list.add(it) }
         return list
     }
 
@@ -428,48 +458,148 @@ object KQCodeUtils {
      */
     @JvmOverloads
     fun getParam(text: String, paramKey: String, type: String = "", index: Int = 0): String? {
-        val cqHead = CQ_HEAD + type
-        val cqEnd = CQ_END
-        val cqSpl = CQ_SPLIT
-
-        var from = -1
-        var end = -1
-        var i = -1
-        do {
-            from = text.indexOf(cqHead, from + 1)
-            if (from >= 0) {
-                // 寻找结尾
-                end = text.indexOf(cqEnd, from)
-                if (end >= 0) {
-                    i++
+        val value = findParam(text, paramKey, type, index)
+        if (value < 0) {
+            return null
+        }
+        return text.substring(CqScanner.codeStartOf(value), CqScanner.codeEndOf(value))
+    }
+
+    /**
+     * 寻找第[index]个类型为[type]的CQ码中参数[paramKey]的值的范围
+     * @return `(值开始索引 shl 32) or 值结束索引`, 不存在则返回-1
+     */
+    private fun findParam(text: String, paramKey: String, type: String, index: Int): Long {
+        val code = findCode(text, type, index)
+        if (code < 0) {
+            return -1
+        }
+        return CqScanner.findParam(text, CqScanner.codeStartOf(code), CqScanner.codeEndOf(code), paramKey)
+    }
+
+    /**
+     * 获取文本中的CQ码的参数并直接解析为[Long], 例如qq号、表情id等。
+     * 数字会直接从原文本中解析，不会截取字符串, 也不会产生任何对象。
+     *
+     * 如果找不到对应索引的CQ码、找不到此key或者参数不是一个合法的整数，返回[default]
+     *
+     * @param text 消息字符串
+     * @param paramKey 参数的键
+     * @param type CQ码的类型, 默认为所有类型
+     * @param index 第几个索引位的CQ码，默认为0，即第一个
+     * @param default 默认值
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun getParamAsLong(text: String, paramKey: String, type: String = "", index: Int = 0, default: Long): Long {
+        val value = findParam(text, paramKey, type, index)
+        if (value < 0) {
+            return default
+        }
+        return CqScanner.parseLong(text, CqScanner.codeStartOf(value), CqScanner.codeEndOf(value), default)
+    }
+
+    /** at码中qq参数的查询 */
+    private val atQqQuery: CqParamQuery = CqParamQuery("at", "qq")
+
+    /** at全体时qq参数的值 */
+    private const val AT_ALL_QQ = "all"
+
+    /**
+     * 获取消息中所有at码的目标qq号, 按出现的顺序排列, 可能存在重复。
+     * at全体(`qq=all`)以及不是合法数字的qq参数会被忽略, at全体可以通过[containsAtAll]判断。
+     *
+     * 只会扫描一次消息, 除了返回的数组以外不会产生任何对象。
+     * @since 1.8.2
+     */
+    fun extractAtTargets(text: String): LongArray = atQqQuery.findAllLong(text)
+
+    /**
+     * 消息中是否存在at全体(`[CQ:at,qq=all]`)
+     * @since 1.8.2
+     */
+    fun containsAtAll(text: String): Boolean = atQqQuery.matches(text, AT_ALL_QQ)
+
+    /**
+     * 消息中是否at了[selfQq]。
+     *
+     * 只会扫描一次消息, 且不会产生任何对象。
+     *
+     * @param text 消息字符串
+     * @param selfQq 被at的qq号, 一般为机器人自身
+     * @param includeAtAll at全体是否也视为at了[selfQq], 默认为true
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun isMentioned(text: String, selfQq: Long, includeAtAll: Boolean = true): Boolean {
+        // 作为默认值, 一定与selfQq不同
+        val notSelf = selfQq.inv()
+        var code = atQqQuery.nextCode(text, 0)
+        while (code >= 0) {
+            val e = CqScanner.codeEndOf(code)
+            val found = CqScanner.findParam(text, CqScanner.codeStartOf(code), e, atQqQuery.key)
+            if (found >= 0) {
+                val start = CqScanner.codeStartOf(found)
+                val end = CqScanner.codeEndOf(found)
+                if (CqScanner.parseLong(text, start, end, notSelf) == selfQq) {
+                    return true
+                }
+                if (includeAtAll && end - start == AT_ALL_QQ.length && CqScanner.regionMatches(text, start, AT_ALL_QQ)) {
+                    return true
                 }
             }
-        } while (from >= 0 && i < index)
-
-        // 索引对上了
-        if (i == index) {
-            // 从from开始找参数
-            val paramFind = ",$paramKey="
-            val phi = text.indexOf(paramFind, from)
-            if (phi < 0) {
-                return null
-            }
-            // 找到了之后，找下一个逗号，如果没有，就用最终结尾的位置
-            val startIndex = phi + paramFind.length
-            var pei = text.indexOf(cqSpl, startIndex)
-            // 超出去了
-            if (pei < 0 || pei > end) {
-                pei = end
-            }
-            if (startIndex > text.lastIndex || startIndex > pei) {
-                return null
-            }
-            return text.substring(startIndex, pei)
-        } else {
-            return null
+            code = atQqQuery.nextCode(text, e + 1)
         }
+        return false
     }
 
+    /**
+     * 为一条消息构建[CqMessageIndex]。
+     * 当需要对同一条消息进行多次[getCq]、[getParam]等查询的时候, 通过索引查询可以避免每次都重新扫描消息。
+     * @since 1.8.2
+     */
+    fun messageIndex(text: String): CqMessageIndex = CqMessageIndex.of(text)
+
+    /**
+     * 以流的形式解析一段消息, 将其中的文本与CQ码按顺序推送至[handler], 不会构建任何结果。
+     * @see CqStreamParser
+     * @since 1.8.2
+     */
+    fun parse(text: CharSequence, handler: CqEventHandler) = CqStreamParser(handler).parse(text)
+
+    /**
+     * 以流的形式读取并解析[reader]中的全部内容, 将其中的文本与CQ码按顺序推送至[handler], 不会关闭[reader]。
+     * @see CqStreamParser
+     * @since 1.8.2
+     */
+    fun parse(reader: Reader, handler: CqEventHandler) = CqStreamParser(handler).parse(reader)
+
+    /**
+     * 将多个CQ码类型编译为一个[CqTypeMatcher], 以便于在一次扫描中找出所有属于这些类型的CQ码。
+     * 匹配到的类型以其在[types]中的索引作为id。
+     *
+     * 编译得到的[CqTypeMatcher]是线程安全的, 应当将其保存并复用。
+     * @since 1.8.2
+     */
+    fun compileTypes(vararg types: String): CqTypeMatcher = CqTypeMatcher(types)
+
+    /**
+     * 编译一个CQ码参数查询, 用于对大量消息反复执行相同的[getParam]查询。
+     *
+     * 编译得到的[CqParamQuery]是线程安全的, 应当将其保存并复用。
+     * @param type CQ码的类型, 为空字符串则视为所有类型
+     * @param key 参数的键
+     * @since 1.8.2
+     */
+    fun compileParamQuery(type: String, key: String): CqParamQuery = CqParamQuery(type, key)
+
+    /**
+     * 获取一个多监听器消息过滤器的构建器。
+     * 构建得到的[CqMessageFilter]可以在一次扫描中判断大量监听器的过滤条件。
+     * @since 1.8.2
+     */
+    fun filterBuilder(): CqMessageFilter.Builder = CqMessageFilter.builder()
+
     /**
      * 获取文本字符串中CQ码字符串的迭代器
      * @since 1.1-1.11
@@ -480,6 +610,16 @@ object KQCodeUtils {
     fun getCqIter(text: String, type: String = ""): Iterator<String> = CqTextIterator(text, type)
 
 
+    /**
+     * 获取文本字符串中CQ码片段的迭代器, 迭代得到的结果为不复制字符的[CqSpan]视图。
+     * @since 1.8.2
+     * @param text 存在CQ码正文的文本
+     * @param type 要获取的CQ码的类型，如果为空字符串则视为所有，默认为所有。
+     */
+    @JvmOverloads
+    fun getCqSpanIter(text: String, type: String = ""): Iterator<CqSpan> = CqSpanIterator(text, type)
+
+
     /**
      * 为一个CQ码字符串得到他的key迭代器
      * @param code cq码字符串
@@ -502,6 +642,13 @@ object KQCodeUtils {
      */
     fun getCqPairIter(code: String): Iterator<Pair<String, String>> = CqParamPairIterator(code)
 
+    /**
+     * 为一个CQ码字符串得到他的参数游标, 遍历参数的过程中不会产生任何对象。
+     * @param code cq码字符串
+     * @since 1.8.2
+     */
+    fun getCqParamCursor(code: String): CqParamCursor = CqParamCursor(code)
+
 
     /**
      * @see getKqs
@@ -516,20 +663,109 @@ object KQCodeUtils {
     }
 
     /**
-     * 以[getCqIter]方法为基础获取字符串中全部的Kqs对象
+     * 以[getCqs]方法为基础获取字符串中全部的Kqs对象
      * @since 1.1-1.11
      * @param text 存在CQ码正文的文本
      * @param type 要获取的CQ码的类型，如果为空字符串则视为所有，默认为所有。
      */
     @JvmOverloads
     fun getKqs(text: String, type: String = ""): List<KQCode> {
-        val iter: Iterator<String> = getCqIter(text, type)
-        val list: MutableList<KQCode> = mutableListOf()
-        iter.forEach { list.add(KQCode.of(it)) }
-        return list
+        val tokenizer = CqTokenizer.acquire()
+        try {
+            val count = tokenizer.tokenize(text)
+            val list: MutableList<KQCode> = ArrayList(tokenizer.codeCount)
+            for (i in 0 until count) {
+                if (tokenizer.isCode(i, type)) {
+                    list.add(FastKQCode.byRegion(text, tokenizer.start(i), tokenizer.end(i)))
+                }
+            }
+            return list
+        } finally {
+            CqTokenizer.release(tokenizer)
+        }
     }
 
 
+    /**
+     * 并行地获取多条消息中全部的Kqs对象, 结果的顺序与[texts]一致。
+     * 适用于一次性处理大量消息(例如历史消息的重放)的场景。
+     *
+     * @param texts 消息列表
+     * @param type 要获取的CQ码的类型，如果为空字符串则视为所有，默认为所有。
+     * @param parallelism 并行度, 默认为[ForkJoinPool.commonPool]的并行度。
+     * 如果与其不同, 则每次调用都会创建并关闭一个临时的[ForkJoinPool]。需要频繁调用时请使用参数为[ForkJoinPool]的重载并复用同一个池。
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun getKqsBatch(
+        texts: List<String>,
+        type: String = "",
+        parallelism: Int = ForkJoinPool.getCommonPoolParallelism()
+    ): List<List<KQCode>> = CqBatch.map(texts, parallelism) { getKqs(it, type) }
+
+    /**
+     * 以[parallelism]的并行度并行地获取多条消息中全部的Kqs, 不限定类型。
+     * @see getKqsBatch
+     * @since 1.8.2
+     */
+    fun getKqsBatch(texts: List<String>, parallelism: Int): List<List<KQCode>> =
+        CqBatch.map(texts, parallelism) { getKqs(it) }
+
+    /**
+     * 在[pool]中并行地获取多条消息中全部的Kqs对象, 结果的顺序与[texts]一致。
+     * 任务的粒度由[pool]的并行度决定, [pool]不会被关闭。
+     * @since 1.8.2
+     */
+    fun getKqsBatch(texts: List<String>, type: String, pool: ForkJoinPool): List<List<KQCode>> =
+        CqBatch.map(texts, pool) { getKqs(it, type) }
+
+    /**
+     * 在[executor]中并行地获取多条消息中全部的Kqs对象, 结果的顺序与[texts]一致。
+     * 会阻塞直到全部的消息处理完毕, 因此不能在[executor]的线程中调用, 否则在有界的线程池中可能导致死锁。
+     * @param taskCount 提交至[executor]的任务数量, 默认为可用处理器数量的8倍。
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun getKqsBatch(
+        texts: List<String>,
+        type: String,
+        executor: Executor,
+        taskCount: Int = CqBatch.defaultTaskCount()
+    ): List<List<KQCode>> = CqBatch.map(texts, executor, taskCount) { getKqs(it, type) }
+
+    /**
+     * 并行地切割多条消息, 结果的顺序与[texts]一致。
+     * [parallelism]与[ForkJoinPool.commonPool]的并行度不同时, 每次调用都会创建并关闭一个临时的[ForkJoinPool]。
+     * @see split
+     * @see getKqsBatch
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun splitBatch(
+        texts: List<String>,
+        parallelism: Int = ForkJoinPool.getCommonPoolParallelism()
+    ): List<List<String>> = CqBatch.map(texts, parallelism) { split(it) }
+
+    /**
+     * 在[pool]中并行地切割多条消息, 结果的顺序与[texts]一致。[pool]不会被关闭。
+     * @since 1.8.2
+     */
+    fun splitBatch(texts: List<String>, pool: ForkJoinPool): List<List<String>> =
+        CqBatch.map(texts, pool) { split(it) }
+
+    /**
+     * 在[executor]中并行地切割多条消息, 结果的顺序与[texts]一致。
+     * 会阻塞直到全部的消息处理完毕, 因此不能在[executor]的线程中调用, 否则在有界的线程池中可能导致死锁。
+     * @param taskCount 提交至[executor]的任务数量, 默认为可用处理器数量的8倍。
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun splitBatch(
+        texts: List<String>,
+        executor: Executor,
+        taskCount: Int = CqBatch.defaultTaskCount()
+    ): List<List<String>> = CqBatch.map(texts, executor, taskCount) { split(it) }
+
     /**
      * @see getKq
      */
@@ -548,8 +784,14 @@ object KQCodeUtils {
      */
     @JvmOverloads
     fun getKq(text: String, type: String = "", index: Int = 0): KQCode? {
-        val cq: String = getCq(text, type, index) ?: return null
-        return KQCode.of(cq)
+        if (index < 0) {
+            throw IndexOutOfBoundsException("$index")
+        }
+        val code = findCode(text, type, index)
+        if (code < 0) {
+            return null
+        }
+        return FastKQCode.byRegion(text, CqScanner.codeStartOf(code), CqScanner.codeEndOf(code) + 1)
     }
 
     /**
@@ -570,91 +812,73 @@ object KQCodeUtils {
         ignoreEmpty: Boolean = true,
         delimiter: CharSequence = ""
     ): String {
-        when {
-            text.isEmpty() -> {
-                return text
-            }
-            else -> {
-                val sb = StringBuilder(text.length)
-                // 移除所有的CQ码
-                val head = CQ_HEAD + type
-                val end = CQ_END
-
-                var hi: Int = -1
-                var ei = -1
-                var nextHi: Int
-                var sps = 0
-                var sub: String
-                var next: Char
-
-                if (text.length < head.length + end.length) {
-                    return text
-                }
-
-                if (!text.contains(head)) {
-                    return text
+        if (text.isEmpty()) {
+            return text
+        }
+        val tokenizer = CqTokenizer.acquire()
+        try {
+            val count = tokenizer.tokenize(text)
+            var sb: StringBuilder? = null
+            var sps = 0
+            for (i in 0 until count) {
+                if (!tokenizer.isCode(i, type)) {
+                    continue
                 }
-
-                do {
-                    hi++
-                    hi = text.indexOf(head, hi)
-                    next = text[hi + head.length]
-                    // 如果text存在内容，则判断：下一个不是逗号或者结尾
-                    if (type.isNotEmpty() && (next != ',' && next.toString() != end)) {
-                        continue
-                    }
-                    if (hi >= 0) {
-                        // 有一个头
-                        // 寻找下一个尾
-                        ei = text.indexOf(end, hi)
-                        if (ei > 0) {
-                            // 有一个尾，看看下一个头是不是在下一个尾之后
-                            nextHi = text.indexOf(head, hi + 1)
-                            // 如果中间包着一个头，则这个头作为当前头
-                            if (nextHi in 0 until ei) {
-                                hi = nextHi
-                            }
-                            if (hi > 0) {
-                                if (sps > 0) {
-                                    sps++
-                                }
-                                sub = text.substring(sps, hi)
-                                if (!ignoreEmpty || (ignoreEmpty && sub.isNotBlank())) {
-                                    if (trim) {
-                                        sub = sub.trim()
-                                    }
-                                    if (sb.isNotEmpty()) {
-                                        sb.append(delimiter)
-                                    }
-                                    sb.append(sub)
-                                }
-                                sps = ei
-                            } else if (hi == 0) {
-                                sps = ei
-
-                            }
-                        }
-                    }
-                } while (hi >= 0 && ei > 0)
-
-                // 没有头了
-                if (sps != text.lastIndex) {
-                    sub = text.substring(sps + 1)
-                    if (!ignoreEmpty || (ignoreEmpty && sub.isNotBlank())) {
-                        if (trim) {
-                            sub = sub.trim()
-                        }
-                        if (sb.isNotEmpty()) {
-                            sb.append(delimiter)
-                        }
-                        sb.append(sub)
+                val hi = tokenizer.start(i)
+                if (sb == null) {
+                    sb = StringBuilder(text.length)
+                    // 开头的空白不需要
+                    if (hi > 0) {
+                        sb.appendRemain(text, 0, hi, trim, ignoreEmpty, delimiter)
                     }
+                } else {
+                    sb.appendRemain(text, sps, hi, trim, ignoreEmpty, delimiter)
                 }
-                return sb.toString()
+                sps = tokenizer.end(i)
+            }
+            // 没有需要移除的CQ码
+            if (sb == null) {
+                return text
+            }
+            if (sps < text.length) {
+                sb.appendRemain(text, sps, text.length, trim, ignoreEmpty, delimiter)
             }
+            return sb.toString()
+        } finally {
+            CqTokenizer.release(tokenizer)
         }
     }
 
+    /**
+     * 将[text]中 \[[start], [end]) 范围内移除CQ码后剩余的文本追加至[StringBuilder]中
+     */
+    private fun StringBuilder.appendRemain(
+        text: String,
+        start: Int,
+        end: Int,
+        trim: Boolean,
+        ignoreEmpty: Boolean,
+        delimiter: CharSequence
+    ) {
+        var s = start
+        var e = end
+        if (ignoreEmpty || trim) {
+            while (s < e && text[s].isWhitespace()) s++
+            while (e > s && text[e - 1].isWhitespace()) e--
+            if (ignoreEmpty && s == e) {
+                return
+            }
+            if (!trim) {
+                s = start
+                e = end
+            }
+        }
+        if (isNotEmpty()) {
+            append(delimiter)
+        }
+        append(text, s, e)
+    }
+
     /**
      * 移除字符串中的所有的CQ码，返回字符串
      * 必须是完整的\[CQ...]
@@ -693,6 +917,58 @@ object KQCodeUtils {
         return removeCode(type, text, trim, ignoreEmpty, delimiter)
     }
 
+    /**
+     * 对消息中的CQ码进行替换, 只进行一次扫描并输出至一个预先分配好容量的缓冲区中。
+     *
+     * 对于每一个CQ码, [transform]的返回值:
+     * - 为`null`则移除此CQ码,
+     * - 为参数本身则保留原始的CQ码,
+     * - 否则使用返回值替换此CQ码。
+     *
+     * 非CQ码的文本会原样保留。如果所有的CQ码都被保留, 则直接返回[text]本身。
+     *
+     * ```
+     * KQCodeUtils.replace(text, "at") { code -> "@" + nicknameOf(code) }
+     * ```
+     *
+     * @param text 文本正文
+     * @param type 需要处理的CQ码类型, 为空字符串则视为所有类型, 其余类型的CQ码会原样保留。默认为所有类型。
+     * @param transform 转化函数, 其参数为原始CQ码的[CqSpan]视图, 不需要复制即可读取。
+     * @since 1.8.2
+     */
+    @JvmOverloads
+    fun replace(text: String, type: String = "", transform: (code: CqSpan) -> CharSequence?): String {
+        val length = text.length
+        var sb: StringBuilder? = null
+        // 尚未写入缓冲区的开始索引
+        var last = 0
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            val start = CqScanner.codeStartOf(code)
+            val end = CqScanner.codeEndOf(code) + 1
+            if (CqScanner.isType(text, start, type)) {
+                val span = CqSpan(text, start, end)
+                val replacement = transform(span)
+                if (replacement !== span) {
+                    if (sb == null) {
+                        sb = StringBuilder(length + 16)
+                    }
+                    sb.append(text, last, start)
+                    if (replacement != null) {
+                        sb.append(replacement)
+                    }
+                    last = end
+                }
+            }
+            code = CqScanner.nextCode(text, end, length)
+        }
+        if (sb == null) {
+            return text
+        }
+        sb.append(text, last, length)
+        return sb.toString()
+    }
+
 
 }
 
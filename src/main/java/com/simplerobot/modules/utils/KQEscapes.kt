@@ -0,0 +1,185 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQEscapes.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * [CQEncoder]与[CQDecoder]所使用的查表转义引擎。
+ *
+ * 转义与反转义均只对字符串进行一次遍历, 且当字符串中不存在需要处理的字符时直接返回原字符串实例,
+ * 不会产生任何额外的对象。
+ *
+ * 转义表：
+ * ```
+ * &  -> &amp;
+ * [  -> &#91;
+ * ]  -> &#93;
+ * \t -> &#09;
+ * \r -> &#10;
+ * \n -> &#13;
+ * ```
+ * 参数值的反转义额外支持 `&#44;` -> `,`
+ *
+ * @since 1.8.2
+ */
+internal object CqEscapes {
+
+    /** 转义表。下标为字符值, 值为转义后的字符串, 为null则代表不需要转义 */
+    private val ENCODE_TABLE: Array<String?> = arrayOfNulls<String>(128).also {
+        it['&'.toInt()] = "&amp;"
+        it['['.toInt()] = "&#91;"
+        it[']'.toInt()] = "&#93;"
+        it['\t'.toInt()] = "&#09;"
+        it['\r'.toInt()] = "&#10;"
+        it['\n'.toInt()] = "&#13;"
+    }
+
+    /** 所有的转义符的长度都是5, 例如`&amp;`与`&#91;` */
+    private const val ESCAPE_LENGTH = 5
+
+    /** 非CQ码文本的`&#xx;`反转义表。下标为两位数字的值, 值为`0`则代表不是转义符 */
+    @JvmField
+    val TEXT_DECODE_TABLE: CharArray = CharArray(100).also {
+        it[91] = '['
+        it[93] = ']'
+        it[9] = '\t'
+        it[10] = '\r'
+        it[13] = '\n'
+    }
+
+    /** CQ码参数值的`&#xx;`反转义表, 相比于[TEXT_DECODE_TABLE]额外多一个逗号 */
+    @JvmField
+    val PARAMS_DECODE_TABLE: CharArray = TEXT_DECODE_TABLE.copyOf().also {
+        it[44] = ','
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内第一个需要转义的字符的索引位, 不存在则返回-1
+     */
+    fun indexOfEncode(str: CharSequence, start: Int, end: Int): Int = CqScanner.indexOfEscape(str, start, end)
+
+    /**
+     * 对字符串进行转义。如果不存在需要转义的字符, 则直接返回[str]本身
+     */
+    fun encode(str: String): String {
+        val first = indexOfEncode(str, 0, str.length)
+        if (first < 0) {
+            return str
+        }
+        val sb = StringBuilder(str.length + 16)
+        sb.append(str, 0, first)
+        encodeTo(sb, str, first, str.length)
+        return sb.toString()
+    }
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符转义后追加至[out]
+     */
+    fun encodeTo(out: Appendable, str: CharSequence, start: Int, end: Int) {
+        var last = start
+        var i = CqScanner.indexOfEscape(str, start, end)
+        while (i >= 0) {
+            if (last < i) {
+                out.append(str, last, i)
+            }
+            out.append(ENCODE_TABLE[str[i].toInt()])
+            last = i + 1
+            i = CqScanner.indexOfEscape(str, last, end)
+        }
+        if (last < end) {
+            out.append(str, last, end)
+        }
+    }
+
+    /**
+     * 判断[str]中[index]位置上是否为一个合法的转义符, 如果是则返回其对应的字符, 否则返回`0`
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun decodeAt(str: CharSequence, index: Int, end: Int, table: CharArray): Char {
+        if (index + ESCAPE_LENGTH > end || str[index + 4] != ';') {
+            return 0.toChar()
+        }
+        val c1 = str[index + 1]
+        if (c1 == 'a') {
+            return if (str[index + 2] == 'm' && str[index + 3] == 'p') '&' else 0.toChar()
+        }
+        if (c1 != '#') {
+            return 0.toChar()
+        }
+        val d1 = str[index + 2] - '0'
+        val d2 = str[index + 3] - '0'
+        if (d1 !in 0..9 || d2 !in 0..9) {
+            return 0.toChar()
+        }
+        return table[d1 * 10 + d2]
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内第一个合法转义符的索引位, 不存在则返回-1
+     */
+    fun indexOfDecode(str: CharSequence, start: Int, end: Int, table: CharArray): Int {
+        var i = CqScanner.indexOf(str, '&', start, end)
+        while (i >= 0) {
+            if (decodeAt(str, i, end, table) != 0.toChar()) {
+                return i
+            }
+            i = CqScanner.indexOf(str, '&', i + 1, end)
+        }
+        return -1
+    }
+
+    /**
+     * 对字符串进行反转义。如果不存在需要反转义的字符, 则直接返回[str]本身
+     */
+    fun decode(str: String, table: CharArray): String {
+        val first = indexOfDecode(str, 0, str.length, table)
+        if (first < 0) {
+            return str
+        }
+        val sb = StringBuilder(str.length)
+        sb.append(str, 0, first)
+        decodeTo(sb, str, first, str.length, table)
+        return sb.toString()
+    }
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符反转义后追加至[out]
+     */
+    fun decodeTo(out: Appendable, str: CharSequence, start: Int, end: Int, table: CharArray) {
+        var last = start
+        var i = start
+        while (i < end) {
+            if (str[i] == '&') {
+                val c = decodeAt(str, i, end, table)
+                if (c != 0.toChar()) {
+                    if (last < i) {
+                        out.append(str, last, i)
+                    }
+                    out.append(c)
+                    i += ESCAPE_LENGTH
+                    last = i
+                    continue
+                }
+            }
+            i++
+        }
+        if (last < end) {
+            out.append(str, last, end)
+        }
+    }
+
+}
@@ -18,29 +18,39 @@ package com.simplerobot.modules.utils
 
 
 /**
- * 基于字符串操作的kq迭代器父类
+ * 基于[CqParamCursor]的CQ码参数迭代器父类。
+ * [hasNext]会将游标移动到下一个参数, 并在[next]之前保持不动, 因此每个参数只会被扫描一次。
  */
-internal abstract class BaseCqIterator<T>(protected val code: String): Iterator<T> {
-    init {
-        if (!code.startsWith(CQ_HEAD) || !code.endsWith(CQ_END)) {
-            throw IllegalArgumentException("text \"$code\" is not a cq code text.")
-        }
-    }
+internal abstract class BaseCqIterator<T>(code: String): Iterator<T> {
+    private val cursor = CqParamCursor(code)
 
-    // 从索引0开始寻找
-    /** 下一个开始的查询索引 */
-    protected var index: Int = 0
+    /** 游标是否已经位于一个尚未被[next]取走的参数上 */
+    private var ready = false
 
-    /** 下一个索引位 */
-    protected abstract fun nextIndex(): Int
+    /** 是否已经不存在更多的参数 */
+    private var done = false
 
+    /** 将游标当前所在的参数转化为结果 */
+    protected abstract fun current(cursor: CqParamCursor): T
 
     /**
      * 判断是否还有下一个参数
      */
     override fun hasNext(): Boolean {
-        // 如果有逗号，说明还有键值对
-        return index >= 0 && nextIndex() > 0
+        if (!ready && !done) {
+            ready = cursor.next()
+            done = !ready
+        }
+        return ready
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     */
+    override fun next(): T {
+        if (!hasNext()) throw NoSuchElementException()
+        ready = false
+        return current(cursor)
     }
 
 }
@@ -49,48 +59,55 @@ internal abstract class BaseCqIterator<T>(protected val code: String): Iterator<
  * 文本CQ码迭代器，从一串文本中迭代出其中的CQ码
  * @since 1.1-1.11
  */
-internal class CqTextIterator(private val text: String, type: String = "") : Iterator<String> {
-    private var i = -1
-    private var ti = 0
-    private var e = 0
-    private val het = CQ_HEAD + type
-    private val ent = CQ_END
+internal class CqTextIterator(text: String, type: String = "") : Iterator<String> {
+    private val spanIterator = CqSpanIterator(text, type)
 
-    private var next: String? = null
-    private var get = true
+    override fun hasNext(): Boolean = spanIterator.hasNext()
+
+    override fun next(): String = spanIterator.next().toString()
+}
+
+
+/**
+ * 文本CQ码片段迭代器，从一串文本中迭代出其中的CQ码的[CqSpan]
+ * 迭代的过程中不会截取任何字符串。
+ * @since 1.8.2
+ */
+internal class CqSpanIterator(private val text: String, private val type: String = "") : Iterator<CqSpan> {
+    /** 下一次查询的开始索引 */
+    private var from = 0
+
+    /** 下一个CQ码的开始索引, 为-1则说明需要查询 */
+    private var nextStart = -1
+    private var nextEnd = -1
 
-    /**
-     * Returns `true` if the iteration has more elements.
-     */
     override fun hasNext(): Boolean {
-        if (!get) {
-            return next != null
+        if (nextStart >= 0) {
+            return true
         }
-        get = false
-        do {
-            ti = text.indexOf(het, e)
-            if (ti >= 0) {
-                e = text.indexOf(ent, ti)
-                if (e >= 0) {
-                    i++
-                    next = text.substring(ti, e + 1)
-                } else {
-                    e = ti + 1
-                }
+        val length = text.length
+        while (from < length) {
+            val code = CqScanner.nextCode(text, from, length)
+            if (code < 0) {
+                from = length
+                break
             }
-        } while (next == null && (ti >= 0 && e >= 0))
-
-        return next != null
+            val h = CqScanner.codeStartOf(code)
+            from = CqScanner.codeEndOf(code) + 1
+            if (CqScanner.isType(text, h, type)) {
+                nextStart = h
+                nextEnd = from
+                return true
+            }
+        }
+        return false
     }
 
-    /**
-     * Returns the next element in the iteration.
-     */
-    override fun next(): String {
-        val n = next
-        next = null
-        get = true
-        return n!!
+    override fun next(): CqSpan {
+        if (!hasNext()) throw NoSuchElementException()
+        val span = CqSpan(text, nextStart, nextEnd)
+        nextStart = -1
+        return span
     }
 }
 
@@ -100,140 +117,46 @@ internal class CqTextIterator(private val text: String, type: String = "") : Ite
  * @since 1.8.0
  */
 internal class CqParamKeyIterator(code: String): BaseCqIterator<String>(code) {
-
-
-    override fun nextIndex(): Int {
-        return code.indexOf(CQ_SPLIT, if (index == 0) 0 else index + 1)
-    }
-
-    /**
-     * Returns the next element in the iteration.
-     */
-    override fun next(): String {
-        if(!hasNext()) throw NoSuchElementException()
-
-        // 下一个逗号所在处
-        index = nextIndex()
-        // 下一个kv切割符所在
-        val nextKv = code.indexOf(CQ_KV, index)
-        return code.substring(index+1, nextKv)
-    }
-
+    override fun current(cursor: CqParamCursor): String = cursor.key()
 }
 
 
-
 /**
  * 一串儿CQ码字符串中的值迭代器
  * 得到的值会进行反转义。
  * @since 1.8.0
  */
 internal class CqParamValueIterator(code: String): BaseCqIterator<String>(code) {
-
-
-    override fun nextIndex(): Int {
-        return code.indexOf(CQ_KV, if(index == 0) 0 else index + 1)
-    }
-
-    /**
-     * 判断是否还有下一个参数
-     */
-    override fun hasNext(): Boolean {
-        // 如果有逗号，说明还有键值对
-        return index >= 0 && nextIndex() > 0
-    }
-
-    /**
-     * Returns the next element in the iteration.
-     */
-    override fun next(): String {
-        if(!hasNext()) throw NoSuchElementException()
-
-        // 下一个逗号所在处
-        index = nextIndex()
-        // 下一个逗号或结尾符所在处
-        var nextSplit = code.indexOf(CQ_SPLIT, index)
-        if(nextSplit < 0){
-            nextSplit = code.lastIndex
-        }
-        return CQDecoder.decodeParams(code.substring(index+1, nextSplit))
-    }
-
+    override fun current(cursor: CqParamCursor): String = cursor.decodedValue()
 }
 
 
-
-
 /**
  * 一串儿CQ码字符串中的键值对迭代器
  * 得到的值会进行反转义。
  * @since 1.8.0
  */
 internal class CqParamPairIterator(code: String): BaseCqIterator<Pair<String, String>>(code) {
-
-
-    override fun nextIndex(): Int {
-        return code.indexOf(CQ_SPLIT, if(index == 0) 0 else index + 1)
-    }
-
-
-    /**
-     * Returns the next element in the iteration.
-     */
-    override fun next(): Pair<String, String> {
-        if(!hasNext()) throw NoSuchElementException()
-
-        // 下一个逗号所在处
-        index = nextIndex()
-        // 下下一个逗号或结尾符所在处
-        var nextSplit = code.indexOf(CQ_SPLIT, index + 1)
-        if(nextSplit < 0){
-            nextSplit = code.lastIndex
-        }
-        val substr = code.substring(index + 1, nextSplit)
-        val keyValue = substr.split(CQ_KV)
-        return keyValue[0] to CQDecoder.decodeParams(keyValue[1])
-    }
-
+    override fun current(cursor: CqParamCursor): Pair<String, String> = cursor.key() to cursor.decodedValue()
 }
 
 
+/**
+ * 一串儿CQ码字符串中的键值对迭代器
+ * 得到的值会进行反转义。
+ * @since 1.8.0
+ */
 internal class CqParamEntryIterator(code: String): BaseCqIterator<Map.Entry<String, String>>(code) {
-
-    override fun nextIndex(): Int {
-        return code.indexOf(CQ_SPLIT, if(index == 0) 0 else index + 1)
-    }
-
-    /**
-     * 判断是否还有下一个参数
-     */
-    override fun hasNext(): Boolean {
-        // 如果有逗号，说明还有键值对
-        return index >= 0 && nextIndex() > 0
-    }
-
-    /**
-     * Returns the next element in the iteration.
-     */
-    override fun next(): Map.Entry<String, String> {
-        if(!hasNext()) throw NoSuchElementException()
-
-        // 下一个逗号所在处
-        index = nextIndex()
-        // 下下一个逗号或结尾符所在处
-        var nextSplit = code.indexOf(CQ_SPLIT, index + 1)
-        if(nextSplit < 0){
-            nextSplit = code.lastIndex
-        }
-        val substr = code.substring(index + 1, nextSplit)
-        val keyValue = substr.split(CQ_KV)
-        return KqEntry(keyValue[0], CQDecoder.decodeParams(keyValue[1]))
-    }
-
+    override fun current(cursor: CqParamCursor): Map.Entry<String, String> = KqEntry(cursor.key(), cursor.decodedValue())
 }
 
 
 /**
- * 针对于[Map.Entry]的简易实现
+ * 针对于[Map.Entry]的简易实现。
+ * [equals]与[hashCode]遵循[java.util.Map.Entry]的约定, 可以与其他[Map]的键值对进行比较。
  */
-internal data class KqEntry(override val key: String, override val value: String) : Map.Entry<String, String>
+internal class KqEntry(override val key: String, override val value: String) : Map.Entry<String, String> {
+    override fun equals(other: Any?): Boolean = other is Map.Entry<*, *> && key == other.key && value == other.value
+    override fun hashCode(): Int = key.hashCode() xor value.hashCode()
+    override fun toString(): String = "$key=$value"
+}
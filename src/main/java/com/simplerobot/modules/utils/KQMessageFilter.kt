@@ -0,0 +1,394 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQMessageFilter.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+import java.util.BitSet
+
+
+/**
+ * 预编译的多监听器消息过滤器。
+ *
+ * 将大量监听器的过滤条件合并编译为:
+ * - 一个CQ码类型的字典树(参考[CqTypeMatcher]),
+ * - 按照类型与键分组并排序的参数值表,
+ * - 一个文本前缀的字典树。
+ *
+ * 对于每一条消息只进行一次扫描即可判断所有的条件, 再通过条件到监听器的索引得到所有匹配的监听器。
+ * 每个监听器只被索引在它的一个条件(被最少的监听器共用的条件)之下, 只有这个条件被满足时才会检查其余的条件,
+ * 因此合并结果时不会逐个判断所有的监听器, 也不需要为监听器计数。
+ *
+ * 每次[match]的开销为: 扫描消息(与消息长度和条件的种类相关)、一个按照条件数量分配的位数组、
+ * 检查被满足的条件所索引的监听器, 以及清空并写入结果[BitSet](与监听器数量相关, 每64个监听器一个long)。
+ *
+ * 同一个监听器的多个条件之间为 **且** 的关系, 没有任何条件的监听器总是匹配。
+ *
+ * 构建完成后的实例是不可变的, 可以在多个线程之间共享。
+ *
+ * ```
+ * val filter = KQCodeUtils.filterBuilder()
+ *     .containsType(0, "image")
+ *     .paramEquals(1, "at", "qq", "123456")
+ *     .textStartsWith(2, "/help")
+ *     .build()
+ * val matched: BitSet = filter.match(msg)
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqMessageFilter private constructor(builder: Builder) {
+
+    /** 监听器的数量, 即最大的监听器id + 1 */
+    val listenerCount: Int
+
+    /** 条件的数量 */
+    private val conditionCount: Int
+
+    /** 全部CQ码类型的匹配器 */
+    private val typeMatcher: CqTypeMatcher
+
+    /** 类型id -> [containsType]条件的id, 不存在则为-1 */
+    private val typeConditions: IntArray
+
+    /** 类型id -> 此类型下需要判断的参数 */
+    private val paramGroups: Array<Array<ParamGroup>>
+
+    /** 文本前缀的字典树 */
+    private val prefixTrie: CqTrie
+
+    /** 前缀id -> [textStartsWith]条件的id */
+    private val prefixConditions: IntArray
+
+    /** 是否存在前缀条件 */
+    private val hasPrefix: Boolean
+
+    /** 监听器id -> 其全部的条件id */
+    private val listeners: Array<IntArray>
+
+    /** 条件id -> 以此条件作为索引的监听器id */
+    private val conditionListeners: Array<IntArray>
+
+    /** 没有任何条件, 总是匹配的监听器 */
+    private val alwaysMatched: BitSet
+
+    init {
+        // 相同的条件只会判断一次
+        val conditionIds: MutableMap<Any, Int> = LinkedHashMap()
+        fun conditionId(condition: Any): Int = conditionIds.getOrPut(condition) { conditionIds.size }
+
+        val types: MutableList<String> = mutableListOf()
+        fun typeId(type: String): Int {
+            val index = types.indexOf(type)
+            if (index >= 0) {
+                return index
+            }
+            types.add(type)
+            return types.lastIndex
+        }
+
+        val listenerConditions: MutableMap<Int, MutableSet<Int>> = HashMap()
+        var maxListener = -1
+        for (c in builder.conditions) {
+            maxListener = maxOf(maxListener, c.listener)
+            if (c.type != null) {
+                typeId(c.type)
+            }
+            if (c.key != null) {
+                listenerConditions.getOrPut(c.listener) { LinkedHashSet() }.add(conditionId(c.key))
+            }
+        }
+        listenerCount = maxListener + 1
+        conditionCount = conditionIds.size
+        listeners = Array(listenerCount) { listenerConditions[it]?.toIntArray() ?: IntArray(0) }
+        val conditionListenerCounts = IntArray(conditionCount)
+        alwaysMatched = BitSet(listenerCount)
+        for (listener in listeners.indices) {
+            if (listeners[listener].isEmpty()) {
+                alwaysMatched.set(listener)
+            }
+            for (condition in listeners[listener]) {
+                conditionListenerCounts[condition]++
+            }
+        }
+        // 每个监听器只索引在被最少的监听器共用的条件之下, 以减少需要检查其余条件的次数
+        val indexConditions = IntArray(listenerCount) { listener ->
+            listeners[listener].minByOrNull { conditionListenerCounts[it] } ?: -1
+        }
+        val indexCounts = IntArray(conditionCount)
+        for (condition in indexConditions) {
+            if (condition >= 0) indexCounts[condition]++
+        }
+        conditionListeners = Array(conditionCount) { IntArray(indexCounts[it]) }
+        for (listener in listeners.indices) {
+            val condition = indexConditions[listener]
+            if (condition >= 0) {
+                conditionListeners[condition][--indexCounts[condition]] = listener
+            }
+        }
+
+        typeMatcher = CqTypeMatcher(types.toTypedArray())
+        typeConditions = IntArray(types.size) { -1 }
+        val params: Array<MutableMap<String, MutableMap<String, Int>>> = Array(types.size) { LinkedHashMap() }
+        val prefixes: MutableList<String> = mutableListOf()
+        val prefixConditionList: MutableList<Int> = mutableListOf()
+        conditionIds.forEach { (key, id) ->
+            when (key) {
+                is TypeKey -> typeConditions[typeId(key.type)] = id
+                is ParamKey -> params[typeId(key.type)].getOrPut(key.key) { HashMap() }[key.value] = id
+                is PrefixKey -> {
+                    prefixes.add(key.prefix)
+                    prefixConditionList.add(id)
+                }
+            }
+        }
+        paramGroups = Array(types.size) { t ->
+            params[t].map { (key, values) ->
+                val sorted = values.keys.sorted()
+                ParamGroup(key, sorted.toTypedArray(), IntArray(sorted.size) { values.getValue(sorted[it]) })
+            }.toTypedArray()
+        }
+        prefixTrie = CqTrie(prefixes.toTypedArray())
+        prefixConditions = prefixConditionList.toIntArray()
+        hasPrefix = prefixes.isNotEmpty()
+    }
+
+    /**
+     * 对[text]进行一次扫描, 得到所有匹配的监听器id
+     */
+    fun match(text: String): BitSet = match(text, BitSet(listenerCount))
+
+    /**
+     * 对[text]进行一次扫描, 将所有匹配的监听器id写入[out]并返回。[out]原有的内容会被清除。
+     */
+    fun match(text: String, out: BitSet): BitSet {
+        val matched = LongArray((conditionCount + 63) ushr 6)
+        scan(text, matched)
+        out.clear()
+        out.or(alwaysMatched)
+        for (word in matched.indices) {
+            var bits = matched[word]
+            while (bits != 0L) {
+                val condition = (word shl 6) + java.lang.Long.numberOfTrailingZeros(bits)
+                bits = bits and (bits - 1)
+                for (listener in conditionListeners[condition]) {
+                    val conditions = listeners[listener]
+                    if (conditions.size == 1 || conditions.all { matched.isSet(it) }) {
+                        out.set(listener)
+                    }
+                }
+            }
+        }
+        return out
+    }
+
+    /**
+     * 判断单个监听器是否匹配。如果需要判断多个监听器, 使用[match]。
+     */
+    fun matches(text: String, listener: Int): Boolean {
+        if (listener < 0 || listener >= listenerCount) {
+            throw IndexOutOfBoundsException("listener: $listener, listenerCount: $listenerCount")
+        }
+        val matched = LongArray((conditionCount + 63) ushr 6)
+        scan(text, matched)
+        return listeners[listener].all { matched.isSet(it) }
+    }
+
+    /**
+     * 扫描消息, 将满足的条件id记录在[matched]中
+     */
+    private fun scan(text: String, matched: LongArray) {
+        val length = text.length
+        var prefixState = if (hasPrefix) CqTrie.ROOT else -1
+        var pos = 0
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            val start = CqScanner.codeStartOf(code)
+            val e = CqScanner.codeEndOf(code)
+            if (prefixState >= 0 && start > pos) {
+                prefixState = feedPrefix(text, pos, start, prefixState, matched)
+            }
+            val typeId = typeMatcher.typeIdAt(text, start)
+            if (typeId >= 0) {
+                val condition = typeConditions[typeId]
+                if (condition >= 0) {
+                    matched.set(condition)
+                }
+                for (group in paramGroups[typeId]) {
+                    val found = CqScanner.findParam(text, start, e, group.key)
+                    if (found >= 0) {
+                        val value = group.search(text, CqScanner.codeStartOf(found), CqScanner.codeEndOf(found))
+                        if (value >= 0) {
+                            matched.set(value)
+                        }
+                    }
+                }
+            }
+            pos = e + 1
+            code = CqScanner.nextCode(text, pos, length)
+        }
+        if (prefixState >= 0 && pos < length) {
+            feedPrefix(text, pos, length, prefixState, matched)
+        }
+    }
+
+    /**
+     * 将一段去除首尾空白后的文本输入前缀字典树
+     * @return 输入后的状态, 已经不可能再匹配任何前缀时返回-1
+     */
+    private fun feedPrefix(text: String, start: Int, end: Int, state: Int, matched: LongArray): Int {
+        var s = start
+        var e = end
+        while (s < e && text[s].isWhitespace()) s++
+        while (e > s && text[e - 1].isWhitespace()) e--
+        var current = state
+        for (i in s until e) {
+            current = prefixTrie.next(current, text[i])
+            if (current < 0) {
+                return -1
+            }
+            val prefix = prefixTrie.accept(current)
+            if (prefix >= 0) {
+                matched.set(prefixConditions[prefix])
+            }
+        }
+        return current
+    }
+
+    override fun toString(): String = "CqMessageFilter(listenerCount=$listenerCount, conditionCount=$conditionCount)"
+
+    /**
+     * 某个类型中某个键的全部参数值条件, [values]已排序
+     */
+    private class ParamGroup(val key: String, private val values: Array<String>, private val conditions: IntArray) {
+        /**
+         * 二分查找[text]中 \[[start], [end]) 范围内的值所对应的条件id, 不存在则返回-1
+         */
+        fun search(text: String, start: Int, end: Int): Int {
+            var low = 0
+            var high = values.size - 1
+            while (low <= high) {
+                val mid = (low + high) ushr 1
+                val cmp = compareRegion(text, start, end, values[mid])
+                when {
+                    cmp > 0 -> low = mid + 1
+                    cmp < 0 -> high = mid - 1
+                    else -> return conditions[mid]
+                }
+            }
+            return -1
+        }
+
+        /** 与[String.compareTo]相同的比较方式 */
+        private fun compareRegion(text: String, start: Int, end: Int, other: String): Int {
+            val length = end - start
+            val min = minOf(length, other.length)
+            for (i in 0 until min) {
+                val diff = text[start + i] - other[i]
+                if (diff != 0) {
+                    return diff
+                }
+            }
+            return length - other.length
+        }
+    }
+
+    /** 一个监听器的一个条件, [key]为null则代表没有条件 */
+    internal class Condition(val listener: Int, val type: String?, val key: Any?)
+
+    private data class TypeKey(val type: String)
+    private data class ParamKey(val type: String, val key: String, val value: String)
+    private data class PrefixKey(val prefix: String)
+
+    /**
+     * [CqMessageFilter]的构建器, 线程不安全。
+     *
+     * 监听器id应当从0开始连续分配, 过滤器的结果中会包含`0 until 最大id + 1`范围内的所有监听器。
+     */
+    class Builder {
+        internal val conditions: MutableList<Condition> = mutableListOf()
+
+        private fun add(listener: Int, type: String?, key: Any): Builder {
+            if (listener < 0) {
+                throw IllegalArgumentException("listener must >= 0, but $listener")
+            }
+            conditions.add(Condition(listener, type, key))
+            return this
+        }
+
+        /**
+         * 注册一个没有条件的监听器, 其总是匹配
+         */
+        fun listener(listener: Int): Builder {
+            if (listener < 0) {
+                throw IllegalArgumentException("listener must >= 0, but $listener")
+            }
+            conditions.add(Condition(listener, null, null))
+            return this
+        }
+
+        /**
+         * 消息中存在类型为[type]的CQ码
+         */
+        fun containsType(listener: Int, type: String): Builder {
+            if (type.isEmpty()) {
+                throw IllegalArgumentException("type cannot be empty.")
+            }
+            return add(listener, type, TypeKey(type))
+        }
+
+        /**
+         * 消息中存在类型为[type]且参数[key]的值为[value]的CQ码。
+         * [value]为反转义后的值。
+         */
+        fun paramEquals(listener: Int, type: String, key: String, value: String): Builder {
+            if (type.isEmpty()) {
+                throw IllegalArgumentException("type cannot be empty.")
+            }
+            return add(listener, type, ParamKey(type, key, CQEncoder.encodeParams(value)))
+        }
+
+        /**
+         * 消息移除CQ码后的文本以[prefix]开头。
+         * 与[KQCodeUtils.remove]相同, 每一段文本都会去除首尾的空白, 纯空白的文本会被忽略。
+         * [prefix]为反转义后的文本。
+         */
+        fun textStartsWith(listener: Int, prefix: String): Builder {
+            if (prefix.isEmpty()) {
+                return listener(listener)
+            }
+            return add(listener, null, PrefixKey(CQEncoder.encodeText(prefix)))
+        }
+
+        /**
+         * 构建过滤器
+         */
+        fun build(): CqMessageFilter = CqMessageFilter(this)
+    }
+
+    companion object {
+        /**
+         * 获取一个构建器
+         */
+        @JvmStatic
+        fun builder(): Builder = Builder()
+
+        private fun LongArray.set(index: Int) {
+            this[index ushr 6] = this[index ushr 6] or (1L shl index)
+        }
+
+        private fun LongArray.isSet(index: Int): Boolean = this[index ushr 6] and (1L shl index) != 0L
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQMessageIndex.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+import com.simplerobot.modules.utils.codes.FastKQCode
+
+
+/**
+ * 一条消息的CQ码索引。
+ *
+ * 在构建时对消息进行一次[分词][CqTokenizer], 记录下每一个CQ码与其中每一个键值对的位置, 并按照类型进行分组。
+ * 之后的[getCq]、[getParam]、[codeCount]等查询均不会再次扫描消息:
+ * 通过索引获取CQ码为O(1), 获取参数只需要遍历对应CQ码的键值对。
+ *
+ * 适用于需要对同一条消息多次按索引遍历CQ码或读取多个参数的场景。
+ * [KQCodeUtils.getCq]与[KQCodeUtils.getParam]每次调用都会从头扫描消息。
+ *
+ * 构建完成后的实例是不可变的, 可以在多个线程之间共享。
+ *
+ * 通过[KQCodeUtils.messageIndex]或[CqMessageIndex.of]获取实例。
+ *
+ * @since 1.8.2
+ */
+class CqMessageIndex private constructor(
+    /** 原始消息 */
+    val text: String
+) {
+
+    private val tokenizer: CqTokenizer = CqTokenizer().also { it.tokenize(text) }
+
+    /** 全部CQ码的片段索引 */
+    private val codeSegments: IntArray
+
+    /** 类型 -> 此类型下全部CQ码的片段索引 */
+    private val typeSegments: Map<String, IntArray>
+
+    init {
+        val tokenizer = this.tokenizer
+        val codeCount = tokenizer.codeCount
+        codeSegments = IntArray(codeCount)
+        // 每个CQ码的类型在distinctTypes中的索引
+        val typeOrdinals = IntArray(codeCount)
+        val distinctTypes: MutableList<String> = mutableListOf()
+        val typeCounts: MutableList<Int> = mutableListOf()
+        var c = 0
+        for (i in 0 until tokenizer.segmentCount) {
+            if (!tokenizer.isCode(i)) {
+                continue
+            }
+            codeSegments[c] = i
+            var ordinal = distinctTypes.indexOfFirst { tokenizer.regionEquals(tokenizer.typeStart(i), tokenizer.typeEnd(i), it) }
+            if (ordinal < 0) {
+                ordinal = distinctTypes.size
+                distinctTypes.add(text.substring(tokenizer.typeStart(i), tokenizer.typeEnd(i)))
+                typeCounts.add(0)
+            }
+            typeCounts[ordinal] = typeCounts[ordinal] + 1
+            typeOrdinals[c] = ordinal
+            c++
+        }
+        val groups = Array(distinctTypes.size) { IntArray(typeCounts[it]) }
+        val filled = IntArray(distinctTypes.size)
+        for (code in 0 until codeCount) {
+            val ordinal = typeOrdinals[code]
+            groups[ordinal][filled[ordinal]++] = codeSegments[code]
+        }
+        typeSegments = HashMap<String, IntArray>(distinctTypes.size * 2).also { map ->
+            distinctTypes.forEachIndexed { i, type -> map[type] = groups[i] }
+        }
+    }
+
+    /** CQ码的数量 */
+    val codeCount: Int
+        get() = codeSegments.size
+
+    /** 消息中出现过的全部CQ码类型 */
+    val types: Set<String>
+        get() = typeSegments.keys
+
+    /**
+     * 指定类型的CQ码数量
+     * @param type CQ码的类型, 为空字符串则视为所有类型
+     */
+    fun codeCount(type: String): Int = if (type.isEmpty()) codeSegments.size else typeSegments[type]?.size ?: 0
+
+    /**
+     * 是否存在指定类型的CQ码
+     */
+    fun containsType(type: String): Boolean = codeCount(type) > 0
+
+    /**
+     * 获取指定类型中第[index]个CQ码的片段索引, 不存在则返回-1
+     */
+    private fun segmentOf(type: String, index: Int): Int {
+        if (index < 0) {
+            throw IndexOutOfBoundsException("$index")
+        }
+        val segments = if (type.isEmpty()) codeSegments else typeSegments[type] ?: return -1
+        return if (index < segments.size) segments[index] else -1
+    }
+
+    /**
+     * 获取CQ码字符串
+     * @param type CQ码的类型, 默认为所有类型
+     * @param index 第几个索引位的CQ码，默认为0，即第一个
+     */
+    @JvmOverloads
+    fun getCq(type: String = "", index: Int = 0): String? {
+        val segment = segmentOf(type, index)
+        return if (segment < 0) null else text.substring(tokenizer.start(segment), tokenizer.end(segment))
+    }
+
+    /**
+     * 获取CQ码字符串
+     * @param index 第几个索引位的CQ码
+     */
+    fun getCq(index: Int): String? = getCq(type = "", index = index)
+
+    /**
+     * 获取CQ码的[CqSpan]视图
+     * @param type CQ码的类型, 默认为所有类型
+     * @param index 第几个索引位的CQ码，默认为0，即第一个
+     */
+    @JvmOverloads
+    fun getCqSpan(type: String = "", index: Int = 0): CqSpan? {
+        val segment = segmentOf(type, index)
+        return if (segment < 0) null else CqSpan(text, tokenizer.start(segment), tokenizer.end(segment))
+    }
+
+    /**
+     * 获取CQ码并封装为[KQCode]
+     * @param type CQ码的类型, 默认为所有类型
+     * @param index 第几个索引位的CQ码，默认为0，即第一个
+     */
+    @JvmOverloads
+    fun getKq(type: String = "", index: Int = 0): KQCode? {
+        val segment = segmentOf(type, index)
+        return if (segment < 0) null else FastKQCode.byRegion(text, tokenizer.start(segment), tokenizer.end(segment))
+    }
+
+    /**
+     * 获取CQ码的参数, 得到的值不会进行反转义。
+     * 如果找不到对应索引的CQ码、找不到此key，返回null；如果找到了key但是无参数，返回空字符串
+     *
+     * @param paramKey 参数的键
+     * @param type CQ码的类型, 默认为所有类型
+     * @param index 第几个索引位的CQ码，默认为0，即第一个
+     */
+    @JvmOverloads
+    fun getParam(paramKey: String, type: String = "", index: Int = 0): String? {
+        val segment = segmentOf(type, index)
+        if (segment < 0) {
+            return null
+        }
+        val p = tokenizer.indexOfKey(segment, paramKey)
+        return if (p < 0) null else text.substring(tokenizer.valueStart(segment, p), tokenizer.valueEnd(segment, p))
+    }
+
+    /**
+     * 获取CQ码的参数, 如果[index]为0, 与[getParam]相同。
+     */
+    fun getParam(paramKey: String, index: Int): String? = getParam(paramKey = paramKey, type = "", index = index)
+
+    override fun toString(): String = "CqMessageIndex(codeCount=$codeCount, types=$types)"
+
+    companion object {
+        /**
+         * 为一条消息构建索引
+         */
+        @JvmStatic
+        fun of(text: String): CqMessageIndex = CqMessageIndex(text)
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQParamCursor.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * CQ码参数的游标。
+ *
+ * 每次[next]移动到下一个参数, 之后通过[keyStart]、[keyEnd]、[valueStart]与[valueEnd]
+ * 得到当前参数的键与值在[text]中的位置。移动的过程中每个字符只会被扫描一次, 且不会产生任何对象,
+ * 只有在调用[key]、[value]或[decodedValue]时才会截取字符串。
+ *
+ * 与[com.simplerobot.modules.utils.codes.FastKQCode]一致, 不存在`=`的参数会被跳过。
+ *
+ * 游标可以通过[reset]重复用于其他的CQ码。实例 **线程不安全**。
+ *
+ * ```
+ * val cursor = CqParamCursor(code)
+ * while (cursor.next()) {
+ *     if (cursor.keyEquals("file")) {
+ *         return cursor.decodedValue()
+ *     }
+ * }
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqParamCursor
+@JvmOverloads
+constructor(text: CharSequence, codeStart: Int = 0, codeEnd: Int = text.length) {
+
+    /** CQ码所在的字符序列 */
+    var text: CharSequence = ""
+        private set
+
+    /** 结尾符`]`的索引 */
+    private var close = 0
+
+    /** 下一个参数之前的`,`的索引, 不存在则为-1 */
+    private var split = -1
+
+    /** 当前参数的键在[text]中的开始索引 */
+    var keyStart: Int = -1
+        private set
+
+    /** 当前参数的键在[text]中的结束索引(不包含), 即`=`的索引 */
+    var keyEnd: Int = -1
+        private set
+
+    /** 当前参数的值在[text]中的开始索引 */
+    var valueStart: Int = -1
+        private set
+
+    /** 当前参数的值在[text]中的结束索引(不包含) */
+    var valueEnd: Int = -1
+        private set
+
+    init {
+        reset(text, codeStart, codeEnd)
+    }
+
+    /**
+     * 以[text]中 \[[codeStart], [codeEnd]) 范围内的CQ码重置此游标
+     * @return 此游标
+     */
+    @JvmOverloads
+    fun reset(text: CharSequence, codeStart: Int = 0, codeEnd: Int = text.length): CqParamCursor {
+        if (codeStart < 0 || codeEnd > text.length || codeStart > codeEnd) {
+            throw IndexOutOfBoundsException("codeStart: $codeStart, codeEnd: $codeEnd, length: ${text.length}")
+        }
+        if (codeEnd - codeStart <= CQ_HEAD.length || !CqScanner.regionMatches(text, codeStart, CQ_HEAD) || text[codeEnd - 1] != ']') {
+            throw IllegalArgumentException("text \"${text.subSequence(codeStart, codeEnd)}\" is not a cq code text.")
+        }
+        this.text = text
+        close = codeEnd - 1
+        split = CqScanner.indexOf(text, ',', codeStart + CQ_HEAD.length, close)
+        keyStart = -1
+        keyEnd = -1
+        valueStart = -1
+        valueEnd = -1
+        return this
+    }
+
+    /**
+     * 移动到下一个参数
+     * @return 存在下一个参数则返回true
+     */
+    fun next(): Boolean {
+        val text = this.text
+        val close = this.close
+        while (split >= 0) {
+            val start = split + 1
+            var kv = -1
+            var i = start
+            while (i < close) {
+                val c = text[i]
+                if (c == ',') {
+                    break
+                }
+                if (c == '=' && kv < 0) {
+                    kv = i
+                }
+                i++
+            }
+            split = if (i < close) i else -1
+            if (kv >= 0) {
+                keyStart = start
+                keyEnd = kv
+                valueStart = kv + 1
+                valueEnd = i
+                return true
+            }
+        }
+        keyStart = -1
+        keyEnd = -1
+        valueStart = -1
+        valueEnd = -1
+        return false
+    }
+
+    private fun checkCurrent() {
+        if (keyStart < 0) {
+            throw NoSuchElementException("no current param.")
+        }
+    }
+
+    /**
+     * 当前参数的键是否与[key]相同
+     */
+    fun keyEquals(key: CharSequence): Boolean {
+        checkCurrent()
+        return keyEnd - keyStart == key.length && CqScanner.regionMatches(text, keyStart, key)
+    }
+
+    /**
+     * 当前参数的原始值是否与[value]相同。比较的是未反转义的值, 因此[value]应当是转义后的值。
+     */
+    fun valueEquals(value: CharSequence): Boolean {
+        checkCurrent()
+        return valueEnd - valueStart == value.length && CqScanner.regionMatches(text, valueStart, value)
+    }
+
+    /**
+     * 截取当前参数的键
+     */
+    fun key(): String {
+        checkCurrent()
+        return text.subSequence(keyStart, keyEnd).toString()
+    }
+
+    /**
+     * 截取当前参数未反转义的值
+     */
+    fun value(): String {
+        checkCurrent()
+        return text.subSequence(valueStart, valueEnd).toString()
+    }
+
+    /**
+     * 截取当前参数反转义后的值。不存在转义字符时只截取一次。
+     */
+    fun decodedValue(): String {
+        checkCurrent()
+        val start = valueStart
+        val end = valueEnd
+        if (CqEscapes.indexOfDecode(text, start, end, CqEscapes.PARAMS_DECODE_TABLE) < 0) {
+            return text.subSequence(start, end).toString()
+        }
+        return CQDecoder.decodeParamsTo(StringBuilder(end - start), text, start, end).toString()
+    }
+
+    /**
+     * 将当前参数的值直接解析为[Long], 不会截取字符串。不是一个合法的整数时返回[default]
+     */
+    fun longValue(default: Long): Long {
+        checkCurrent()
+        return CqScanner.parseLong(text, valueStart, valueEnd, default)
+    }
+
+    override fun toString(): String =
+        if (keyStart < 0) "CqParamCursor()"
+        else "CqParamCursor(${text.subSequence(keyStart, keyEnd)}=${text.subSequence(valueStart, valueEnd)})"
+}
@@ -0,0 +1,223 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQParamQuery.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 预编译的CQ码参数查询。
+ *
+ * 在构建时计算好CQ码头(例如`[CQ:at`)等查询所需的字符串, 之后的每一次查询都不会再拼接字符串。
+ * 查询时直接以[String.indexOf]寻找对应类型的CQ码头, 而不需要逐个判断消息中的每一个CQ码。
+ * 除了[find]与[findDecoded]所返回的结果以外, 查询过程中不会产生任何对象。
+ *
+ * 构建完成后的实例是不可变的, 可以在多个线程之间共享。
+ *
+ * ```
+ * val qq = KQCodeUtils.compileParamQuery("at", "qq")
+ * qq.find(msg)      // 第一个at码的qq参数
+ * qq.find(msg, 1)   // 第二个at码的qq参数
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqParamQuery internal constructor(
+    /** CQ码的类型, 为空字符串则视为所有类型 */
+    val type: String,
+    /** 参数的键 */
+    val key: String
+) {
+
+    /** CQ码头, 例如`[CQ:at` */
+    private val head: String = CQ_HEAD + type
+
+    /**
+     * 寻找[text]中从[from]开始的下一个此类型的CQ码。
+     * @return `(开头索引 shl 32) or 结尾(]字符)索引`, 不存在则返回-1
+     */
+    internal fun nextCode(text: CharSequence, from: Int): Long {
+        val length = text.length
+        var h = CqScanner.indexOf(text, head, from)
+        while (h >= 0) {
+            val after = h + head.length
+            if (after < length) {
+                val c = text[after]
+                if (type.isEmpty() || c == ',' || c == ']') {
+                    val e = CqScanner.indexOf(text, ']', h + CQ_HEAD.length, length)
+                    if (e < 0) {
+                        return -1
+                    }
+                    // 与其后第一个']'之间没有其他的CQ码头时才是一个CQ码的开头
+                    if (CqScanner.indexOfHead(text, h + 1, e) < 0) {
+                        return (h.toLong() shl 32) or e.toLong()
+                    }
+                }
+            }
+            h = CqScanner.indexOf(text, head, h + 1)
+        }
+        return -1
+    }
+
+    /**
+     * 寻找第[index]个此类型CQ码中参数值的范围。
+     * @return `(值开始索引 shl 32) or 值结束索引`, 不存在则返回-1
+     */
+    private fun findValue(text: CharSequence, index: Int): Long {
+        if (index < 0) {
+            throw IndexOutOfBoundsException("$index")
+        }
+        var i = 0
+        var code = nextCode(text, 0)
+        while (code >= 0) {
+            val e = CqScanner.codeEndOf(code)
+            if (i == index) {
+                return CqScanner.findParam(text, CqScanner.codeStartOf(code), e, key)
+            }
+            i++
+            code = nextCode(text, e + 1)
+        }
+        return -1
+    }
+
+    /**
+     * 获取第[index]个此类型CQ码中参数值的开始索引, 不存在则返回-1。
+     * 参数值的结束索引可以通过[valueEndOf]获取。
+     */
+    @JvmOverloads
+    fun indexOf(text: CharSequence, index: Int = 0): Int {
+        val value = findValue(text, index)
+        return if (value < 0) -1 else CqScanner.codeStartOf(value)
+    }
+
+    /**
+     * 获取以[valueStart]开始的参数值的结束索引(不包含)
+     */
+    fun valueEndOf(text: CharSequence, valueStart: Int): Int {
+        val length = text.length
+        for (i in valueStart until length) {
+            val c = text[i]
+            if (c == ',' || c == ']') {
+                return i
+            }
+        }
+        return length
+    }
+
+    /**
+     * 获取第[index]个此类型CQ码中的参数值, 不会进行反转义。
+     * 如果找不到对应索引的CQ码、找不到此key，返回null；如果找到了key但是无参数，返回空字符串
+     */
+    @JvmOverloads
+    fun find(text: CharSequence, index: Int = 0): String? {
+        val value = findValue(text, index)
+        return if (value < 0) null else text.subSequence(CqScanner.codeStartOf(value), CqScanner.codeEndOf(value)).toString()
+    }
+
+    /**
+     * 获取第[index]个此类型CQ码中反转义后的参数值
+     */
+    @JvmOverloads
+    fun findDecoded(text: CharSequence, index: Int = 0): String? {
+        val value = findValue(text, index)
+        if (value < 0) {
+            return null
+        }
+        val start = CqScanner.codeStartOf(value)
+        val end = CqScanner.codeEndOf(value)
+        return CQDecoder.decodeParamsTo(StringBuilder(end - start), text, start, end).toString()
+    }
+
+    /**
+     * 获取第[index]个此类型CQ码中的参数值并直接解析为[Long], 不会产生任何对象。
+     * 如果找不到对应索引的CQ码、找不到此key或者参数不是一个合法的整数，返回[default]
+     */
+    @JvmOverloads
+    fun findLong(text: CharSequence, index: Int = 0, default: Long): Long {
+        val value = findValue(text, index)
+        if (value < 0) {
+            return default
+        }
+        return CqScanner.parseLong(text, CqScanner.codeStartOf(value), CqScanner.codeEndOf(value), default)
+    }
+
+    /**
+     * 获取全部此类型CQ码中的参数值并解析为[Long], 不是合法整数的参数值(例如`all`)会被忽略。
+     * 除了返回的数组以外, 不会产生任何对象。
+     */
+    fun findAllLong(text: CharSequence): LongArray {
+        var result = EMPTY_LONG_ARRAY
+        var size = 0
+        var code = nextCode(text, 0)
+        while (code >= 0) {
+            val e = CqScanner.codeEndOf(code)
+            val found = CqScanner.findParam(text, CqScanner.codeStartOf(code), e, key)
+            if (found >= 0) {
+                val start = CqScanner.codeStartOf(found)
+                val end = CqScanner.codeEndOf(found)
+                val value = CqScanner.parseLong(text, start, end, Long.MIN_VALUE)
+                if (value != Long.MIN_VALUE || CqScanner.isMinLong(text, start, end)) {
+                    if (size == result.size) {
+                        result = result.copyOf(maxOf(4, size * 2))
+                    }
+                    result[size++] = value
+                }
+            }
+            code = nextCode(text, e + 1)
+        }
+        return if (size == result.size) result else result.copyOf(size)
+    }
+
+    /**
+     * 是否存在一个此类型且存在此参数的CQ码
+     */
+    fun contains(text: CharSequence): Boolean {
+        var code = nextCode(text, 0)
+        while (code >= 0) {
+            val e = CqScanner.codeEndOf(code)
+            if (CqScanner.findParam(text, CqScanner.codeStartOf(code), e, key) >= 0) {
+                return true
+            }
+            code = nextCode(text, e + 1)
+        }
+        return false
+    }
+
+    /**
+     * 是否存在一个此类型且此参数的值为[value]的CQ码。
+     * 比较的是未反转义的原始值, 因此[value]应当是转义后的值(对于数字等不需要转义的值没有区别)。
+     */
+    fun matches(text: CharSequence, value: CharSequence): Boolean {
+        var code = nextCode(text, 0)
+        while (code >= 0) {
+            val e = CqScanner.codeEndOf(code)
+            val found = CqScanner.findParam(text, CqScanner.codeStartOf(code), e, key)
+            if (found >= 0) {
+                val start = CqScanner.codeStartOf(found)
+                if (CqScanner.codeEndOf(found) - start == value.length && CqScanner.regionMatches(text, start, value)) {
+                    return true
+                }
+            }
+            code = nextCode(text, e + 1)
+        }
+        return false
+    }
+
+    override fun toString(): String = "CqParamQuery(type=$type, key=$key)"
+
+    private companion object {
+        val EMPTY_LONG_ARRAY = LongArray(0)
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQScanner.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 字符扫描工具。
+ *
+ * 用于寻找需要转义的字符(`& [ ] \t \r \n`)以及CQ码的结构标记(`[CQ:`, `]`, `,`, `=`)。
+ *
+ * - 当目标为[String]时, 单字符的查找会交给[String.indexOf], 在JDK9+的HotSpot上此方法会被内联为SIMD实现。
+ *   [String.indexOf]不能限定结尾, 因此只在范围之后剩余的字符不多于范围本身时使用, 保证扫描不会超出范围太多。
+ * - 需要转义的字符通过两个64位的位掩码逐字符判断, 不需要任何查表与内存读取。此扫描是标量的, 不存在向量化。
+ *
+ * @since 1.8.2
+ */
+internal object CqScanner {
+
+    /** 0~63 范围内需要转义的字符的位掩码: `\t`、`\n`、`\r`、`&` */
+    private const val ESCAPE_MASK_LOW: Long =
+        (1L shl '\t'.toInt()) or (1L shl '\n'.toInt()) or (1L shl '\r'.toInt()) or (1L shl '&'.toInt())
+
+    /** 64~127 范围内需要转义的字符的位掩码: `[`、`]` */
+    private const val ESCAPE_MASK_HIGH: Long =
+        (1L shl ('['.toInt() - 64)) or (1L shl (']'.toInt() - 64))
+
+    /**
+     * 判断一个字符是否是需要转义的字符
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    inline fun isEscape(c: Char): Boolean {
+        val i = c.toInt()
+        return if (i < 64) {
+            (ESCAPE_MASK_LOW ushr i) and 1L != 0L
+        } else {
+            i < 128 && (ESCAPE_MASK_HIGH ushr (i - 64)) and 1L != 0L
+        }
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内第一个需要转义的字符, 不存在则返回-1。
+     *
+     * 这是逐字符的标量扫描, 不会被向量化: 每个字符只通过[isEscape]的位掩码判断一次, 不需要查表。
+     */
+    fun indexOfEscape(str: CharSequence, start: Int, end: Int): Int {
+        for (i in start until end) {
+            if (isEscape(str[i])) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内第一个字符[c], 不存在则返回-1
+     */
+    fun indexOf(str: CharSequence, c: Char, start: Int, end: Int): Int {
+        // String.indexOf不能限定结尾, 只有在范围之后的字符不多于范围本身时才使用,
+        // 避免在长字符串中逐段查找时每一段都扫描至字符串末尾
+        if (str is String && str.length - end <= end - start) {
+            val i = str.indexOf(c, start)
+            return if (i < end) i else -1
+        }
+        for (i in start until end) {
+            if (str[i] == c) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * 寻找[str]中从[start]开始第一个[needle], 不存在则返回-1
+     */
+    fun indexOf(str: CharSequence, needle: String, start: Int): Int {
+        if (str is String) {
+            return str.indexOf(needle, start)
+        }
+        if (needle.isEmpty()) {
+            return if (start <= str.length) start else -1
+        }
+        val first = needle[0]
+        val last = str.length - needle.length
+        var i = indexOf(str, first, start, last + 1)
+        while (i >= 0) {
+            if (regionMatches(str, i, needle)) {
+                return i
+            }
+            i = indexOf(str, first, i + 1, last + 1)
+        }
+        return -1
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内第一个完整的`[CQ:`, 不存在则返回-1
+     */
+    fun indexOfHead(str: CharSequence, start: Int, end: Int): Int {
+        val last = end - CQ_HEAD.length
+        var i = indexOf(str, '[', start, end)
+        while (i in 0..last) {
+            if (str[i + 1] == 'C' && str[i + 2] == 'Q' && str[i + 3] == ':') {
+                return i
+            }
+            i = indexOf(str, '[', i + 1, end)
+        }
+        return -1
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内最后一个完整的`[CQ:`, 不存在则返回-1
+     */
+    fun lastIndexOfHead(str: CharSequence, start: Int, end: Int): Int {
+        var i = end - CQ_HEAD.length
+        while (i >= start) {
+            if (str[i] == '[' && str[i + 1] == 'C' && str[i + 2] == 'Q' && str[i + 3] == ':') {
+                return i
+            }
+            i--
+        }
+        return -1
+    }
+
+    /**
+     * 寻找[str]中 \[[start], [end]) 范围内的下一个完整的CQ码。
+     * 如果一个`[CQ:`与其后第一个`]`之间还存在另外一个`[CQ:`, 则以最后一个`[CQ:`作为CQ码的开头。
+     *
+     * @return 找到了则返回`(开头索引 shl 32) or 结尾(]字符)索引`, 否则返回-1
+     * @see codeStartOf
+     * @see codeEndOf
+     */
+    fun nextCode(str: CharSequence, start: Int, end: Int): Long {
+        var h = indexOfHead(str, start, end)
+        if (h < 0) {
+            return -1
+        }
+        val e = indexOf(str, ']', h + CQ_HEAD.length, end)
+        if (e < 0) {
+            return -1
+        }
+        // 如果中间包着一个头，则这个头作为当前头
+        var nextH = indexOfHead(str, h + 1, e)
+        while (nextH >= 0) {
+            h = nextH
+            nextH = indexOfHead(str, h + 1, e)
+        }
+        return (h.toLong() shl 32) or e.toLong()
+    }
+
+    /** 获取[nextCode]结果中的开头索引 */
+    @Suppress("NOTHING_TO_INLINE")
+    inline fun codeStartOf(code: Long): Int = (code ushr 32).toInt()
+
+    /** 获取[nextCode]结果中的结尾(`]`字符)索引 */
+    @Suppress("NOTHING_TO_INLINE")
+    inline fun codeEndOf(code: Long): Int = code.toInt()
+
+    /**
+     * 判断[str]中以[codeStart]开头的CQ码的类型是否为[type], [type]为空字符串则视为任意类型。
+     */
+    fun isType(str: CharSequence, codeStart: Int, type: CharSequence): Boolean {
+        if (type.isEmpty()) {
+            return true
+        }
+        val typeStart = codeStart + CQ_HEAD.length
+        val typeEnd = typeStart + type.length
+        if (typeEnd >= str.length) {
+            return false
+        }
+        for (i in type.indices) {
+            if (str[typeStart + i] != type[i]) {
+                return false
+            }
+        }
+        val next = str[typeEnd]
+        return next == ',' || next == ']'
+    }
+
+    /**
+     * 判断[str]中从[offset]开始的内容是否与[other]相同
+     */
+    fun regionMatches(str: CharSequence, offset: Int, other: CharSequence): Boolean {
+        if (offset < 0 || offset + other.length > str.length) {
+            return false
+        }
+        for (i in other.indices) {
+            if (str[offset + i] != other[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /** [Long.MIN_VALUE]的字符串形式 */
+    private const val MIN_LONG_TEXT = "-9223372036854775808"
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符解析为[Long], 不会产生任何对象。
+     * 如果不是一个合法的整数(包括溢出的情况)则返回[default]
+     */
+    fun parseLong(str: CharSequence, start: Int, end: Int, default: Long): Long {
+        if (start >= end) {
+            return default
+        }
+        var i = start
+        val first = str[i]
+        val negative = first == '-'
+        if (negative || first == '+') {
+            if (++i == end) {
+                return default
+            }
+        }
+        // 与Long.parseLong相同, 以负数累计以便于容纳Long.MIN_VALUE
+        val limit = if (negative) Long.MIN_VALUE else -Long.MAX_VALUE
+        val multiplyMin = limit / 10
+        var result = 0L
+        while (i < end) {
+            val digit = str[i++] - '0'
+            if (digit < 0 || digit > 9 || result < multiplyMin) {
+                return default
+            }
+            result *= 10
+            if (result < limit + digit) {
+                return default
+            }
+            result -= digit
+        }
+        return if (negative) result else -result
+    }
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符解析为[Long]
+     * @throws NumberFormatException 不是一个合法的整数
+     */
+    fun parseLong(str: CharSequence, start: Int, end: Int): Long {
+        val result = parseLong(str, start, end, Long.MIN_VALUE)
+        if (result == Long.MIN_VALUE && !isMinLong(str, start, end)) {
+            throw NumberFormatException("For input string: \"${str.subSequence(start, end)}\"")
+        }
+        return result
+    }
+
+    /**
+     * [str]中 \[[start], [end]) 范围内的字符是否为[Long.MIN_VALUE]。
+     * 用于区分以[Long.MIN_VALUE]作为默认值时[parseLong]的结果。
+     */
+    fun isMinLong(str: CharSequence, start: Int, end: Int): Boolean =
+        end - start == MIN_LONG_TEXT.length && regionMatches(str, start, MIN_LONG_TEXT)
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符解析为[Int], 不会产生任何对象。
+     * 如果不是一个合法的整数(包括溢出的情况)则返回[default]
+     */
+    fun parseInt(str: CharSequence, start: Int, end: Int, default: Int): Int {
+        val result = parseLong(str, start, end, Long.MIN_VALUE)
+        return if (result < Int.MIN_VALUE || result > Int.MAX_VALUE) default else result.toInt()
+    }
+
+    /**
+     * 将[str]中 \[[start], [end]) 范围内的字符解析为[Int]
+     * @throws NumberFormatException 不是一个合法的整数
+     */
+    fun parseInt(str: CharSequence, start: Int, end: Int): Int {
+        val result = parseLong(str, start, end)
+        if (result < Int.MIN_VALUE || result > Int.MAX_VALUE) {
+            throw NumberFormatException("For input string: \"${str.subSequence(start, end)}\"")
+        }
+        return result.toInt()
+    }
+
+    /**
+     * 在[str]中以[codeStart]开头、[codeEnd]为结尾(`]`字符)索引的CQ码中寻找第一个键为[key]的参数值。
+     * 查询过程中不会产生任何对象。
+     *
+     * @return 找到了则返回`(值开始索引 shl 32) or 值结束索引`, 否则返回-1
+     * @see codeStartOf
+     * @see codeEndOf
+     */
+    fun findParam(str: CharSequence, codeStart: Int, codeEnd: Int, key: CharSequence): Long {
+        var split = indexOf(str, ',', codeStart + CQ_HEAD.length, codeEnd)
+        while (split >= 0) {
+            val keyStart = split + 1
+            val keyEnd = keyStart + key.length
+            val next = indexOf(str, ',', keyStart, codeEnd)
+            val paramEnd = if (next < 0) codeEnd else next
+            if (keyEnd < paramEnd && str[keyEnd] == '=' && regionMatches(str, keyStart, key)) {
+                return ((keyEnd + 1).toLong() shl 32) or paramEnd.toLong()
+            }
+            split = next
+        }
+        return -1
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQSpan.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 一段字符序列中 \[[start], [end]) 范围的视图。
+ *
+ * [CqSpan]只记录原始字符序列与起止索引, 不会复制任何字符,
+ * 只有在调用[toString]的时候才会真正的截取字符串。
+ *
+ * 适用于那些只需要查看一下便会被丢弃的片段, 例如[KQCodeUtils.splitSpans]与[KQCodeUtils.getCqSpans]的结果。
+ *
+ * [CqSpan]之间的[equals]与[hashCode]以其内容为准, 但是[CqSpan]不会与[String]相等,
+ * 如果需要与字符串比较, 使用[contentEquals]。
+ *
+ * @since 1.8.2
+ */
+class CqSpan(
+    /** 原始字符序列 */
+    val source: CharSequence,
+    /** 在[source]中的开始索引(包含) */
+    val start: Int,
+    /** 在[source]中的结束索引(不包含) */
+    val end: Int
+) : CharSequence {
+
+    init {
+        if (start < 0 || end > source.length || start > end) {
+            throw IndexOutOfBoundsException("start: $start, end: $end, length: ${source.length}")
+        }
+    }
+
+    override val length: Int
+        get() = end - start
+
+    override fun get(index: Int): Char {
+        if (index < 0 || index >= length) {
+            throw IndexOutOfBoundsException("index: $index, length: $length")
+        }
+        return source[start + index]
+    }
+
+    /**
+     * 得到的依旧是一个不复制字符的[CqSpan]
+     */
+    override fun subSequence(startIndex: Int, endIndex: Int): CqSpan {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex) {
+            throw IndexOutOfBoundsException("startIndex: $startIndex, endIndex: $endIndex, length: $length")
+        }
+        return CqSpan(source, start + startIndex, start + endIndex)
+    }
+
+    /**
+     * 此片段是否为一个CQ码, 即以`[CQ:`开头且以`]`结尾
+     */
+    val isCode: Boolean
+        get() = length > CQ_HEAD.length &&
+                source[start] == '[' && source[start + 1] == 'C' && source[start + 2] == 'Q' && source[start + 3] == ':' &&
+                source[end - 1] == ']'
+
+    /**
+     * 判断此片段的内容是否与[other]相同
+     */
+    fun contentEquals(other: CharSequence): Boolean {
+        if (other.length != length) {
+            return false
+        }
+        for (i in 0 until length) {
+            if (source[start + i] != other[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is CqSpan) return false
+        return contentEquals(other)
+    }
+
+    /** 与[String.hashCode]相同的计算方式 */
+    override fun hashCode(): Int {
+        var h = 0
+        for (i in start until end) {
+            h = 31 * h + source[i].toInt()
+        }
+        return h
+    }
+
+    override fun toString(): String = source.subSequence(start, end).toString()
+}
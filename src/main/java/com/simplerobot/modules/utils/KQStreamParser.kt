@@ -0,0 +1,393 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQStreamParser.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+import java.io.Reader
+import java.nio.CharBuffer
+
+
+/**
+ * [CqStreamParser]的事件回调, 类似于SAX。
+ *
+ * 所有参数中的[CharSequence]均为解析器内部复用的对象, **只在回调期间有效**,
+ * 如果需要保留, 请调用其`toString()`。
+ *
+ * 所有方法均有默认的空实现, 只需要实现所关心的事件即可。
+ *
+ * @since 1.8.2
+ */
+interface CqEventHandler {
+
+    /**
+     * 一段文本, 已经过反转义。
+     * 在流式解析时, 一段连续的文本可能会被拆分为多次回调。
+     */
+    @JvmDefault
+    fun onText(text: CharSequence) {}
+
+    /**
+     * 一个CQ码的开始
+     * @param type CQ码的类型
+     */
+    @JvmDefault
+    fun onCodeStart(type: CharSequence) {}
+
+    /**
+     * CQ码中的一个键值对, 值已经过反转义。不存在`=`的键值对, 其值为空。
+     */
+    @JvmDefault
+    fun onParam(key: CharSequence, value: CharSequence) {}
+
+    /**
+     * 当前CQ码的结束
+     */
+    @JvmDefault
+    fun onCodeEnd() {}
+}
+
+
+/**
+ * 流式的消息解析器。
+ *
+ * 将消息中的文本与CQ码按顺序以事件的形式推送给[handler], 解析过程中不会构建完整的消息字符串,
+ * 也不会构建任何CQ码或结果列表, 适用于处理体积非常大的消息记录等数据。
+ *
+ * 对[Reader]进行解析时只会保留一个窗口大小的缓冲区, 只有当一个CQ码本身超过了窗口大小时窗口才会扩容。
+ * 窗口末尾尚不完整的CQ码头(`[CQ:`)、CQ码以及转义符会被保留至下一次读取之后再进行判断,
+ * 因此解析结果与对完整消息使用[KQCodeUtils.split]是一致的。
+ * 等待CQ码结尾的期间, 只有读取到`]`时才会重新解析窗口, 每个字符只会被额外扫描常数次。
+ *
+ * 被保留的CQ码最多为[maxCodeLength]个字符, 超过此长度仍未结束的CQ码会被当作文本推送,
+ * 因此窗口的大小不会超过[maxCodeLength]的两倍。只有这种情况下结果会与[KQCodeUtils.split]不同。
+ *
+ * 一个实例可以被反复使用, 但是 **线程不安全**。
+ *
+ * ```
+ * CqStreamParser(handler).parse(reader)
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqStreamParser
+@JvmOverloads
+constructor(
+    /** 事件回调 */
+    val handler: CqEventHandler,
+    /** 读取[Reader]时的窗口大小 */
+    private val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    /** 一个尚未结束的CQ码最多被保留的字符数量 */
+    internal val maxCodeLength: Int = DEFAULT_MAX_CODE_LENGTH
+) {
+
+    init {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw IllegalArgumentException("bufferSize must >= $MIN_BUFFER_SIZE, but $bufferSize")
+        }
+        if (maxCodeLength < MIN_BUFFER_SIZE) {
+            throw IllegalArgumentException("maxCodeLength must >= $MIN_BUFFER_SIZE, but $maxCodeLength")
+        }
+    }
+
+    /** 文本与类型所复用的视图 */
+    private val textView = CqCharView()
+    /** 键所复用的视图 */
+    private val keyView = CqCharView()
+    /** 值所复用的视图 */
+    private val valueView = CqCharView()
+
+    /** 文本反转义所复用的缓冲区 */
+    private val textBuilder = StringBuilder()
+    /** 值反转义所复用的缓冲区 */
+    private val valueBuilder = StringBuilder()
+
+    /**
+     * 解析一段完整的消息
+     */
+    fun parse(text: CharSequence) {
+        try {
+            process(text, 0, text.length, true)
+        } finally {
+            reset()
+        }
+    }
+
+    /**
+     * 解析[buffer]中剩余的全部内容, 解析完成后[buffer]的position会被移动至limit。
+     */
+    fun parse(buffer: CharBuffer) {
+        parse(buffer as CharSequence)
+        buffer.position(buffer.limit())
+    }
+
+    /**
+     * 读取并解析[reader]中的全部内容, 不会关闭[reader]。
+     */
+    fun parse(reader: Reader) {
+        val window = CqCharWindow(CharArray(bufferSize))
+        // 窗口中的内容是否以一个完整的CQ码头开头, 即正在等待CQ码的结尾
+        var inCode = false
+        try {
+            while (true) {
+                val array = window.array
+                val length = window.length
+                val read = reader.read(array, length, array.size - length)
+                if (read < 0) {
+                    process(window, 0, length, true)
+                    return
+                }
+                window.length = length + read
+                // 正在等待CQ码的结尾时, 只需要检查新读取的内容中是否存在']'
+                if (inCode && window.length < maxCodeLength && CqScanner.indexOf(window, ']', length, window.length) < 0) {
+                    window.compact(0)
+                } else {
+                    window.compact(process(window, 0, window.length, false))
+                    inCode = window.length >= CQ_HEAD.length && CqScanner.regionMatches(window, 0, CQ_HEAD)
+                }
+            }
+        } finally {
+            reset()
+        }
+    }
+
+    /**
+     * 解析[buf]中 \[[from], [to]) 范围内的内容。
+     *
+     * 如果[eof]为false, 则末尾尚不完整的CQ码、CQ码头与转义符不会被处理。
+     *
+     * @return 已经处理完毕的位置, 此位置之前的内容不再需要保留。
+     */
+    internal fun process(buf: CharSequence, from: Int, to: Int, eof: Boolean): Int {
+        var pos = from
+        var code = CqScanner.nextCode(buf, pos, to)
+        while (code >= 0) {
+            val h = CqScanner.codeStartOf(code)
+            val e = CqScanner.codeEndOf(code)
+            if (h > pos) {
+                emitText(buf, pos, h)
+            }
+            emitCode(buf, h, e)
+            pos = e + 1
+            code = CqScanner.nextCode(buf, pos, to)
+        }
+        if (eof) {
+            if (pos < to) {
+                emitText(buf, pos, to)
+            }
+            return to
+        }
+        val hold = holdFrom(buf, pos, to)
+        if (hold > pos) {
+            emitText(buf, pos, hold)
+        }
+        return hold
+    }
+
+    /**
+     * 在没有完整CQ码的 \[[from], [to]) 中, 寻找需要保留至下一次解析的开始位置。
+     *
+     * 存在多个尚未结束的CQ码头时只保留最后一个, 因为之前的CQ码头无论之后的内容如何都只能作为文本。
+     * 保留的内容超过[maxCodeLength]时也不再保留。
+     */
+    private fun holdFrom(buf: CharSequence, from: Int, to: Int): Int {
+        // 存在CQ码头但是尚未结束
+        val head = CqScanner.lastIndexOfHead(buf, from, to)
+        if (head >= 0 && to - head < maxCodeLength) {
+            return head
+        }
+        var hold = to
+        // 末尾可能是不完整的CQ码头
+        for (i in maxOf(from, to - CQ_HEAD.length + 1) until to) {
+            if (isHeadPrefix(buf, i, to)) {
+                hold = i
+                break
+            }
+        }
+        // 末尾可能是不完整的转义符
+        for (i in maxOf(from, to - ESCAPE_LENGTH + 1) until hold) {
+            if (buf[i] == '&') {
+                return i
+            }
+        }
+        return hold
+    }
+
+    /**
+     * \[[start], [end]) 范围内的内容是否为`[CQ:`的前缀
+     */
+    private fun isHeadPrefix(buf: CharSequence, start: Int, end: Int): Boolean {
+        for (i in start until end) {
+            if (buf[i] != CQ_HEAD[i - start]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun emitText(buf: CharSequence, start: Int, end: Int) {
+        handler.onText(decode(buf, start, end, CqEscapes.TEXT_DECODE_TABLE, textView, textBuilder))
+    }
+
+    /**
+     * 推送以[h]开头, [e]为结尾(`]`字符)索引的CQ码
+     */
+    private fun emitCode(buf: CharSequence, h: Int, e: Int) {
+        val handler = this.handler
+        val typeStart = h + CQ_HEAD.length
+        var split = CqScanner.indexOf(buf, ',', typeStart, e)
+        handler.onCodeStart(textView.of(buf, typeStart, if (split < 0) e else split))
+        while (split >= 0) {
+            val keyStart = split + 1
+            split = CqScanner.indexOf(buf, ',', keyStart, e)
+            val paramEnd = if (split < 0) e else split
+            val kv = CqScanner.indexOf(buf, '=', keyStart, paramEnd)
+            if (kv < 0) {
+                handler.onParam(keyView.of(buf, keyStart, paramEnd), valueView.of(buf, paramEnd, paramEnd))
+            } else {
+                handler.onParam(
+                    keyView.of(buf, keyStart, kv),
+                    decode(buf, kv + 1, paramEnd, CqEscapes.PARAMS_DECODE_TABLE, valueView, valueBuilder)
+                )
+            }
+        }
+        handler.onCodeEnd()
+    }
+
+    /**
+     * 反转义 \[[start], [end]) 范围内的内容, 不需要反转义时直接返回视图
+     */
+    private fun decode(
+        buf: CharSequence, start: Int, end: Int, table: CharArray,
+        view: CqCharView, builder: StringBuilder
+    ): CharSequence {
+        val first = CqEscapes.indexOfDecode(buf, start, end, table)
+        if (first < 0) {
+            return view.of(buf, start, end)
+        }
+        builder.setLength(0)
+        builder.append(buf, start, first)
+        CqEscapes.decodeTo(builder, buf, first, end, table)
+        return builder
+    }
+
+    /**
+     * 释放对已解析内容的引用
+     */
+    internal fun reset() {
+        textView.of("", 0, 0)
+        keyView.of("", 0, 0)
+        valueView.of("", 0, 0)
+        if (textBuilder.capacity() > MAX_CACHED_BUILDER) {
+            textBuilder.setLength(0)
+            textBuilder.trimToSize()
+        }
+        if (valueBuilder.capacity() > MAX_CACHED_BUILDER) {
+            valueBuilder.setLength(0)
+            valueBuilder.trimToSize()
+        }
+    }
+
+    companion object {
+        /** 默认的窗口大小 */
+        const val DEFAULT_BUFFER_SIZE = 8192
+
+        /** 默认的一个尚未结束的CQ码最多被保留的字符数量 */
+        const val DEFAULT_MAX_CODE_LENGTH = 1 shl 24
+
+        /** 最小的窗口大小 */
+        private const val MIN_BUFFER_SIZE = 16
+
+        /** 转义符的长度, 例如`&#91;` */
+        private const val ESCAPE_LENGTH = 5
+
+        /** 超过此容量的缓冲区在解析结束后会被释放 */
+        private const val MAX_CACHED_BUILDER = 8192
+    }
+}
+
+
+/**
+ * 可复用的字符序列视图, 只供解析器内部在回调时使用
+ */
+internal class CqCharView : CharSequence {
+    private var source: CharSequence = ""
+    private var start: Int = 0
+    private var end: Int = 0
+
+    fun of(source: CharSequence, start: Int, end: Int): CqCharView {
+        this.source = source
+        this.start = start
+        this.end = end
+        return this
+    }
+
+    override val length: Int
+        get() = end - start
+
+    override fun get(index: Int): Char {
+        if (index < 0 || index >= length) {
+            throw IndexOutOfBoundsException("index: $index, length: $length")
+        }
+        return source[start + index]
+    }
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex) {
+            throw IndexOutOfBoundsException("startIndex: $startIndex, endIndex: $endIndex, length: $length")
+        }
+        return source.subSequence(start + startIndex, start + endIndex)
+    }
+
+    override fun toString(): String = source.subSequence(start, end).toString()
+}
+
+
+/**
+ * 以字符数组为载体的可变长度窗口
+ */
+internal class CqCharWindow(var array: CharArray) : CharSequence {
+
+    override var length: Int = 0
+
+    override fun get(index: Int): Char = array[index]
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence =
+        String(array, startIndex, endIndex - startIndex)
+
+    /**
+     * 丢弃[consumed]之前的内容, 如果窗口已满则进行扩容
+     */
+    fun compact(consumed: Int) {
+        if (consumed > 0) {
+            System.arraycopy(array, consumed, array, 0, length - consumed)
+            length -= consumed
+        }
+        if (length == array.size) {
+            array = array.copyOf(array.size * 2)
+        }
+    }
+
+    /**
+     * 确保窗口至少可以容纳[capacity]个字符
+     */
+    fun ensureCapacity(capacity: Int) {
+        if (capacity > array.size) {
+            array = array.copyOf(maxOf(capacity, array.size * 2))
+        }
+    }
+
+    override fun toString(): String = String(array, 0, length)
+}
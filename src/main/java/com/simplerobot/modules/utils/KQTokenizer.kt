@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQTokenizer.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 消息的分词器。
+ *
+ * 对一条消息只进行一次扫描, 将其中的文本片段与CQ码片段的类型、起止索引,
+ * 以及每个CQ码的类型范围与每一个键值对的范围记录在可复用的[IntArray]中。
+ * 分词的过程中不会产生任何字符串, 当数组容量足够时也不会产生任何对象。
+ *
+ * 所有的结束索引均为 **不包含** 的。
+ *
+ * 一个[CqTokenizer]实例可以通过[tokenize]被反复使用, 但是 **线程不安全**。
+ *
+ * 如果一个`[CQ:`与其后第一个`]`之间还存在另外一个`[CQ:`, 则以最后一个`[CQ:`作为CQ码的开头, 前面的部分视为文本。
+ *
+ * ```
+ * val tokenizer = CqTokenizer()
+ * tokenizer.tokenize("hello[CQ:at,qq=123]")
+ * for (i in 0 until tokenizer.segmentCount) {
+ *     if (tokenizer.isCode(i)) { ... }
+ * }
+ * ```
+ *
+ * @since 1.8.2
+ */
+class CqTokenizer {
+
+    /** 当前所分析的文本 */
+    var text: CharSequence = ""
+        private set
+
+    /** 片段数量 */
+    var segmentCount: Int = 0
+        private set
+
+    /** CQ码片段的数量 */
+    var codeCount: Int = 0
+        private set
+
+    /** 键值对的总数量 */
+    private var paramTotal: Int = 0
+
+    /**
+     * 片段信息, 每[SEGMENT_STRIDE]个元素为一个片段:
+     * `kind, start, end, typeEnd, paramIndex, paramCount`
+     */
+    private var segments: IntArray = IntArray(SEGMENT_STRIDE * 8)
+
+    /**
+     * 键值对信息, 每[PARAM_STRIDE]个元素为一个键值对:
+     * `keyStart, keyEnd, valueStart, valueEnd`
+     */
+    private var params: IntArray = IntArray(PARAM_STRIDE * 8)
+
+
+    /**
+     * 对[text]进行分词, 会覆盖上一次的结果。
+     * @return 片段的数量
+     */
+    fun tokenize(text: CharSequence): Int {
+        this.text = text
+        segmentCount = 0
+        codeCount = 0
+        paramTotal = 0
+
+        val length = text.length
+        var textStart = 0
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            val h = CqScanner.codeStartOf(code)
+            val e = CqScanner.codeEndOf(code)
+            if (h > textStart) {
+                addSegment(TEXT, textStart, h, h)
+            }
+            addCode(h, e)
+            textStart = e + 1
+            code = CqScanner.nextCode(text, textStart, length)
+        }
+        if (textStart < length) {
+            addSegment(TEXT, textStart, length, length)
+        }
+        return segmentCount
+    }
+
+    /**
+     * 记录一个CQ码片段, [e]为`]`所在的索引位
+     */
+    private fun addCode(h: Int, e: Int) {
+        val text = this.text
+        val typeStart = h + CQ_HEAD.length
+        var split = CqScanner.indexOf(text, ',', typeStart, e)
+        val typeEnd = if (split < 0) e else split
+        val segmentIndex = addSegment(CODE, h, e + 1, typeEnd)
+        val paramIndex = paramTotal
+        while (split >= 0) {
+            val keyStart = split + 1
+            split = CqScanner.indexOf(text, ',', keyStart, e)
+            val paramEnd = if (split < 0) e else split
+            val kv = CqScanner.indexOf(text, '=', keyStart, paramEnd)
+            if (kv < 0) {
+                addParam(keyStart, paramEnd, paramEnd, paramEnd)
+            } else {
+                addParam(keyStart, kv, kv + 1, paramEnd)
+            }
+        }
+        segments[segmentIndex + 4] = paramIndex
+        segments[segmentIndex + 5] = paramTotal - paramIndex
+        codeCount++
+    }
+
+    private fun addSegment(kind: Int, start: Int, end: Int, typeEnd: Int): Int {
+        val index = segmentCount * SEGMENT_STRIDE
+        if (index + SEGMENT_STRIDE > segments.size) {
+            segments = segments.copyOf(segments.size * 2)
+        }
+        val segments = this.segments
+        segments[index] = kind
+        segments[index + 1] = start
+        segments[index + 2] = end
+        segments[index + 3] = typeEnd
+        segments[index + 4] = 0
+        segments[index + 5] = 0
+        segmentCount++
+        return index
+    }
+
+    private fun addParam(keyStart: Int, keyEnd: Int, valueStart: Int, valueEnd: Int) {
+        val index = paramTotal * PARAM_STRIDE
+        if (index + PARAM_STRIDE > params.size) {
+            params = params.copyOf(params.size * 2)
+        }
+        val params = this.params
+        params[index] = keyStart
+        params[index + 1] = keyEnd
+        params[index + 2] = valueStart
+        params[index + 3] = valueEnd
+        paramTotal++
+    }
+
+    /** 第[segment]个片段的类型, [TEXT] 或 [CODE] */
+    fun kind(segment: Int): Int = segments[segment * SEGMENT_STRIDE]
+
+    /** 第[segment]个片段是否为CQ码 */
+    fun isCode(segment: Int): Boolean = segments[segment * SEGMENT_STRIDE] == CODE
+
+    /** 第[segment]个片段的开始索引 */
+    fun start(segment: Int): Int = segments[segment * SEGMENT_STRIDE + 1]
+
+    /** 第[segment]个片段的结束索引 */
+    fun end(segment: Int): Int = segments[segment * SEGMENT_STRIDE + 2]
+
+    /** 第[segment]个片段(CQ码)的类型开始索引 */
+    fun typeStart(segment: Int): Int = start(segment) + CQ_HEAD.length
+
+    /** 第[segment]个片段(CQ码)的类型结束索引 */
+    fun typeEnd(segment: Int): Int = segments[segment * SEGMENT_STRIDE + 3]
+
+    /** 第[segment]个片段(CQ码)的键值对数量 */
+    fun paramCount(segment: Int): Int = segments[segment * SEGMENT_STRIDE + 5]
+
+    /** 第[segment]个片段(CQ码)的第[param]个键值对在全部键值对中的索引 */
+    private fun paramOffset(segment: Int, param: Int): Int =
+        (segments[segment * SEGMENT_STRIDE + 4] + param) * PARAM_STRIDE
+
+    /** 第[segment]个片段(CQ码)中第[param]个键的开始索引 */
+    fun keyStart(segment: Int, param: Int): Int = params[paramOffset(segment, param)]
+
+    /** 第[segment]个片段(CQ码)中第[param]个键的结束索引 */
+    fun keyEnd(segment: Int, param: Int): Int = params[paramOffset(segment, param) + 1]
+
+    /** 第[segment]个片段(CQ码)中第[param]个值的开始索引 */
+    fun valueStart(segment: Int, param: Int): Int = params[paramOffset(segment, param) + 2]
+
+    /** 第[segment]个片段(CQ码)中第[param]个值的结束索引 */
+    fun valueEnd(segment: Int, param: Int): Int = params[paramOffset(segment, param) + 3]
+
+    /**
+     * 判断第[segment]个片段是否为CQ码, 且其类型为[type]。
+     * 如果[type]为空字符串则视为任意类型。
+     */
+    fun isCode(segment: Int, type: CharSequence): Boolean {
+        if (!isCode(segment)) {
+            return false
+        }
+        return type.isEmpty() || regionEquals(typeStart(segment), typeEnd(segment), type)
+    }
+
+    /**
+     * 第[segment]个片段(CQ码)中第[param]个键值对是否存在`=`。
+     * 对于不存在`=`的键值对, 其值的范围为空。
+     */
+    fun hasValue(segment: Int, param: Int): Boolean = valueStart(segment, param) > keyEnd(segment, param)
+
+    /**
+     * 寻找第[segment]个片段(CQ码)中第一个键为[key]且存在`=`的键值对索引, 不存在则返回-1
+     */
+    fun indexOfKey(segment: Int, key: CharSequence): Int {
+        val count = paramCount(segment)
+        for (p in 0 until count) {
+            if (hasValue(segment, p) && regionEquals(keyStart(segment, p), keyEnd(segment, p), key)) {
+                return p
+            }
+        }
+        return -1
+    }
+
+    /**
+     * 判断文本中 \[[start], [end]) 的内容是否与[other]相同
+     */
+    fun regionEquals(start: Int, end: Int, other: CharSequence): Boolean =
+        end - start == other.length && CqScanner.regionMatches(text, start, other)
+
+    /**
+     * 清除当前的分析结果并释放对文本的引用
+     */
+    fun clear() {
+        text = ""
+        segmentCount = 0
+        codeCount = 0
+        paramTotal = 0
+    }
+
+
+    companion object {
+        /** 文本片段 */
+        const val TEXT = 0
+        /** CQ码片段 */
+        const val CODE = 1
+
+        private const val SEGMENT_STRIDE = 6
+        private const val PARAM_STRIDE = 4
+
+        /** 超过此长度的数组不会被线程缓存保留 */
+        private const val MAX_CACHED_ARRAY = 4096
+
+        /** 线程缓存 */
+        private val LOCAL: ThreadLocal<CqTokenizer> = ThreadLocal()
+
+        /**
+         * 获取当前线程缓存的[CqTokenizer]实例, 使用完毕后需要通过[release]归还。
+         * 如果当前线程的实例正在被使用(例如在回调中嵌套调用), 则会得到一个新的实例。
+         */
+        @PublishedApi
+        internal fun acquire(): CqTokenizer {
+            val tokenizer = LOCAL.get() ?: return CqTokenizer()
+            LOCAL.set(null)
+            return tokenizer
+        }
+
+        /**
+         * 归还通过[acquire]得到的实例
+         */
+        @PublishedApi
+        internal fun release(tokenizer: CqTokenizer) {
+            tokenizer.clear()
+            if (tokenizer.segments.size <= MAX_CACHED_ARRAY && tokenizer.params.size <= MAX_CACHED_ARRAY) {
+                LOCAL.set(tokenizer)
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQTrie.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+import java.util.TreeMap
+
+
+/**
+ * 压平为数组的不可变字典树。
+ *
+ * 每个状态的边按字符排序存储在连续的数组中, 转移时进行二分查找。
+ * 第一个接受某个状态的单词的索引即为此状态的接受id。
+ *
+ * @since 1.8.2
+ */
+internal class CqTrie(words: Array<out String>) {
+
+    /** 各状态的第一条边在[edgeChars]中的索引 */
+    private val edgeStart: IntArray
+
+    /** 各状态的边数量 */
+    private val edgeCount: IntArray
+
+    /** 边上的字符, 同一状态的边按字符排序 */
+    private val edgeChars: CharArray
+
+    /** 边指向的状态 */
+    private val edgeTargets: IntArray
+
+    /** 各状态所接受的单词索引, -1为不接受 */
+    private val accept: IntArray
+
+    init {
+        // 先构建一个以map为载体的字典树，再压平为数组
+        val trie: MutableList<TreeMap<Char, Int>> = mutableListOf(TreeMap())
+        val acceptList: MutableList<Int> = mutableListOf(-1)
+        words.forEachIndexed { id, word ->
+            var state = ROOT
+            for (c in word) {
+                state = trie[state].getOrPut(c) {
+                    trie.add(TreeMap())
+                    acceptList.add(-1)
+                    trie.lastIndex
+                }
+            }
+            if (acceptList[state] < 0) {
+                acceptList[state] = id
+            }
+        }
+        val stateCount = trie.size
+        edgeStart = IntArray(stateCount)
+        edgeCount = IntArray(stateCount)
+        edgeChars = CharArray(stateCount - 1)
+        edgeTargets = IntArray(stateCount - 1)
+        var e = 0
+        trie.forEachIndexed { state, edges ->
+            edgeStart[state] = e
+            edgeCount[state] = edges.size
+            edges.forEach { (c, target) ->
+                edgeChars[e] = c
+                edgeTargets[e] = target
+                e++
+            }
+        }
+        accept = acceptList.toIntArray()
+    }
+
+    /**
+     * 状态[state]经过字符[c]之后的状态, 不存在则返回-1
+     */
+    fun next(state: Int, c: Char): Int {
+        var low = edgeStart[state]
+        var high = low + edgeCount[state] - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val mc = edgeChars[mid]
+            when {
+                mc < c -> low = mid + 1
+                mc > c -> high = mid - 1
+                else -> return edgeTargets[mid]
+            }
+        }
+        return -1
+    }
+
+    /**
+     * 状态[state]所接受的单词索引, 不接受则返回-1
+     */
+    fun accept(state: Int): Int = accept[state]
+
+    companion object {
+        /** 初始状态 */
+        const val ROOT = 0
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KQTypeMatcher.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils
+
+
+/**
+ * 预编译的多类型CQ码匹配器。
+ *
+ * 将多个CQ码类型编译为一个字典树状态机。由于CQ码的类型总是紧跟在`[CQ:`之后并以`,`或`]`结尾,
+ * 因此此状态机相当于锚定在`[CQ:`处的Aho-Corasick自动机, 不需要失配指针。
+ *
+ * 对一条消息只扫描一次即可找出所有属于任意一个目标类型的CQ码, 并以类型在构建时的索引作为其id。
+ * 例如通过 `KQCodeUtils.compileTypes("at", "image", "reply", "face")` 构建的匹配器中, `at`的id为0, `face`的id为3。
+ *
+ * 构建完成后的实例是不可变的, 可以在多个线程之间共享。
+ *
+ * @since 1.8.2
+ */
+class CqTypeMatcher internal constructor(types: Array<out String>) {
+
+    /** 全部的类型, 下标即为类型id */
+    val types: List<String> = types.toList()
+
+    /** 类型的字典树, 接受id即为类型id */
+    private val trie: CqTrie
+
+    init {
+        for (type in types) {
+            if (type.isEmpty()) {
+                throw IllegalArgumentException("type cannot be empty.")
+            }
+        }
+        trie = CqTrie(types)
+    }
+
+    /**
+     * 获取[type]的类型id, 不是目标类型则返回-1
+     */
+    fun typeIdOf(type: CharSequence): Int {
+        var state = CqTrie.ROOT
+        for (c in type) {
+            state = trie.next(state, c)
+            if (state < 0) {
+                return -1
+            }
+        }
+        return trie.accept(state)
+    }
+
+    /**
+     * 获取[text]中以[codeStart]开头的CQ码的类型id, 不是目标类型则返回-1
+     */
+    fun typeIdAt(text: CharSequence, codeStart: Int): Int {
+        var state = CqTrie.ROOT
+        var i = codeStart + CQ_HEAD.length
+        val length = text.length
+        while (i < length) {
+            val c = text[i]
+            if (c == ',' || c == ']') {
+                return trie.accept(state)
+            }
+            state = trie.next(state, c)
+            if (state < 0) {
+                return -1
+            }
+            i++
+        }
+        return -1
+    }
+
+    /**
+     * 获取一个CQ码字符串的类型id, 不是目标类型则返回-1
+     */
+    fun typeIdOfCode(code: CharSequence): Int = if (CqScanner.regionMatches(code, 0, CQ_HEAD)) typeIdAt(code, 0) else -1
+
+    /**
+     * 对[text]进行一次扫描, 每找到一个目标类型的CQ码便回调一次[handler]。
+     * 匹配的过程中不会产生任何对象。
+     */
+    fun match(text: CharSequence, handler: MatchHandler) {
+        val length = text.length
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            val start = CqScanner.codeStartOf(code)
+            val end = CqScanner.codeEndOf(code) + 1
+            val id = typeIdAt(text, start)
+            if (id >= 0) {
+                handler.onMatch(id, start, end)
+            }
+            code = CqScanner.nextCode(text, end, length)
+        }
+    }
+
+    /**
+     * 获取[text]中全部目标类型的CQ码
+     */
+    fun getCqSpans(text: String): List<CqSpan> {
+        val list: MutableList<CqSpan> = mutableListOf()
+        match(text) { _, start, end -> list.add(CqSpan(text, start, end)) }
+        return list
+    }
+
+    /**
+     * 统计[text]中各个目标类型的CQ码数量, 下标即为类型id
+     */
+    fun count(text: CharSequence): IntArray {
+        val counts = IntArray(types.size)
+        match(text) { id, _, _ -> counts[id]++ }
+        return counts
+    }
+
+    /**
+     * [text]中是否存在任意一个目标类型的CQ码
+     */
+    fun containsAny(text: CharSequence): Boolean {
+        val length = text.length
+        var code = CqScanner.nextCode(text, 0, length)
+        while (code >= 0) {
+            if (typeIdAt(text, CqScanner.codeStartOf(code)) >= 0) {
+                return true
+            }
+            code = CqScanner.nextCode(text, CqScanner.codeEndOf(code) + 1, length)
+        }
+        return false
+    }
+
+    override fun toString(): String = "CqTypeMatcher(types=$types)"
+
+    /**
+     * [match]的回调函数
+     */
+    fun interface MatchHandler {
+        /**
+         * 找到了一个目标类型的CQ码
+         * @param typeId 类型id
+         * @param start CQ码的开始索引
+         * @param end CQ码的结束索引(不包含)
+         */
+        fun onMatch(typeId: Int, start: Int, end: Int)
+    }
+}
@@ -17,9 +17,7 @@
 package com.simplerobot.modules.utils.codes
 
 import com.simplerobot.modules.utils.*
-import com.simplerobot.modules.utils.CqParamEntryIterator
-import com.simplerobot.modules.utils.CqParamKeyIterator
-import com.simplerobot.modules.utils.CqParamValueIterator
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 
 /* ******************************************************
@@ -45,37 +43,64 @@ import com.simplerobot.modules.utils.CqParamValueIterator
  *
  *
  */
-open class FastKQCode private constructor(private val code: String) : KQCode {
+open class FastKQCode
+private constructor(
+    /** CQ码所在的字符串, 可能是一条更长的消息 */
+    private val source: String,
+    /** CQ码在[source]中的开始索引 */
+    private val codeStart: Int,
+    /** CQ码在[source]中的结束索引(不包含) */
+    private val codeEnd: Int
+) : KQCode {
     private val _type: String
     private val _size: Int
 
     private val empty: Boolean
-    private val cqHead: String
+    /** 类型在[source]中的开始索引 */
     private val startIndex: Int
+    /** 结尾符`]`在[source]中的索引 */
     private val endIndex: Int
 
     init {
-        if (!this.code.startsWith(CQ_HEAD) || !this.code.endsWith(CQ_END)) {
-            throw IllegalArgumentException("text \"${this.code}\" is not a cq code text.")
+        if (codeEnd - codeStart <= CQ_HEAD.length || !source.startsWith(CQ_HEAD, codeStart) || source[codeEnd - 1] != ']') {
+            throw IllegalArgumentException("text \"${source.substring(codeStart, codeEnd)}\" is not a cq code text.")
         }
-        // get type from string
-        startIndex = CQ_HEAD.length
-        endIndex = this.code.lastIndex
-        val firstSplitIndex: Int = this.code.indexOf(CQ_SPLIT, startIndex).let {
-            if(it < 0) endIndex else it
+        startIndex = codeStart + CQ_HEAD.length
+        endIndex = codeEnd - 1
+        // 类型的结尾与存在CQ_KV的键值对的个数均通过indexOf跳跃查找, 每个字符最多被扫描一次
+        val typeEnd = CqScanner.indexOf(source, ',', startIndex, endIndex)
+        var size = 0
+        var split = typeEnd
+        while (split >= 0) {
+            // 下一个'='必然属于split之后的某一个键值对, 之后直接跳至此键值对的结尾
+            val kv = CqScanner.indexOf(source, '=', split + 1, endIndex)
+            if (kv < 0) {
+                break
+            }
+            size++
+            split = CqScanner.indexOf(source, ',', kv + 1, endIndex)
+        }
+        _type = source.substring(startIndex, if (typeEnd < 0) endIndex else typeEnd)
+        _size = size
+        empty = size == 0
+    }
+
+    /**
+     * CQ码字符串, 如果CQ码只是[source]中的一部分, 则在第一次需要时截取
+     */
+    @Volatile
+    private var codeText: String? = if (codeStart == 0 && codeEnd == source.length) source else null
+
+    override fun toString(): String {
+        var text = codeText
+        if (text == null) {
+            text = source.substring(codeStart, codeEnd)
+            codeText = text
         }
-        // val typeEndIndex = if (firstSplitIndex < 0) _codeText.length else firstSplitIndex
-        _type = this.code.substring(startIndex, firstSplitIndex)
-        cqHead = CQ_HEAD + _type
-        empty = this.code.contains(CQ_SPLIT)
-        // 计算 key-value的个数, 即计算CQ_KV的个数
-        val kvChar: Char = CQ_KV.first()
-        _size = this.code.count { it == kvChar }
+        return text
     }
 
-    private val codeText: String = this.code
-    override fun toString(): String = this.code
-    override val length: Int = this.code.length
+    override val length: Int get() = codeEnd - codeStart
     override val size: Int = _size
     override val type: String = _type
 
@@ -90,7 +115,7 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
      * 从[KQCode]转化为[com.forte.qqrobot.beans.cqcode.CQCode]
      */
     @Suppress("OverridingDeprecatedMember")
-    override fun toCQCode(): com.forte.qqrobot.beans.cqcode.CQCode = com.forte.qqrobot.beans.cqcode.CQCode.of(codeText)
+    override fun toCQCode(): com.forte.qqrobot.beans.cqcode.CQCode = com.forte.qqrobot.beans.cqcode.CQCode.of(toString())
 
     /**
      * 转化为可变参的[MutableKQCode]
@@ -102,12 +127,61 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
      */
     override fun immutable(): KQCode = this
 
+    /**
+     * 直接在CQ码字符串上进行拼接得到新的实例, 只会产生一次字符串的复制。
+     * 如果存在多个键为[key]的参数, 只替换第一个, 与[get]的结果保持一致。
+     * 如果参数的值没有变化则返回当前实例。
+     */
+    override fun with(key: String, value: String): KQCode {
+        val table = if (empty) FastKqParamTable.EMPTY else paramTable()
+        val p = table.indexOfKey(source, key)
+        val builder: StringBuilder
+        if (p < 0) {
+            builder = StringBuilder(length + key.length + value.length + 2)
+            builder.append(source, codeStart, endIndex).append(CQ_SPLIT).append(key).append(CQ_KV)
+            CQEncoder.encodeParamsTo(builder, value)
+            builder.append(CQ_END)
+        } else {
+            val valueStart = table.valueStart(p)
+            val valueEnd = table.valueEnd(p)
+            if (CqEscapes.indexOfEncode(value, 0, value.length) < 0 && table.valueEquals(source, p, value)) {
+                return this
+            }
+            builder = StringBuilder(length - (valueEnd - valueStart) + value.length)
+            builder.append(source, codeStart, valueStart)
+            CQEncoder.encodeParamsTo(builder, value)
+            builder.append(source, valueEnd, codeEnd)
+        }
+        return FastKQCode(builder.toString(), 0, builder.length)
+    }
+
+    /**
+     * 直接在CQ码字符串上移除所有键为[key]的参数得到新的实例, 只会产生一次字符串的复制。
+     */
+    override fun without(key: String): KQCode {
+        if (empty) return this
+        val table = paramTable()
+        val first = table.indexOfKey(source, key)
+        if (first < 0) return this
+        val builder = StringBuilder(length)
+        var last = codeStart
+        for (p in first until table.count) {
+            if (table.keyEquals(source, p, key)) {
+                // 连同参数之前的','一起移除
+                builder.append(source, last, table.keyStart(p) - 1)
+                last = table.valueEnd(p)
+            }
+        }
+        builder.append(source, last, codeEnd)
+        return FastKQCode(builder.toString(), 0, builder.length)
+    }
+
     /**
      * 查询cq码字符串中是否存在指定的key
      */
     override fun containsKey(key: String): Boolean {
         if (empty) return false
-        return codeText.contains("$CQ_SPLIT$key$CQ_KV")
+        return indexOfKey(key) >= 0
     }
 
     /**
@@ -117,7 +191,11 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
     override fun containsValue(value: String): Boolean {
         if (empty) return false
         val encodeValue: String = CQEncoder.encodeParams(value)
-        return codeText.contains("$CQ_KV$encodeValue$CQ_SPLIT") || codeText.contains("$CQ_KV$encodeValue$CQ_END")
+        val table = paramTable()
+        for (p in 0 until table.count) {
+            if (table.valueEquals(source, p, encodeValue)) return true
+        }
+        return false
     }
 
     /**
@@ -125,14 +203,58 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
      */
     override operator fun get(key: String): String? = CQDecoder.decodeParamsOrNull(getParam(key))
 
+    /**
+     * 直接从CQ码字符串中解析数字, 不会截取字符串
+     */
+    override fun getLong(key: String): Long {
+        val p = if (empty) -1 else indexOfKey(key)
+        if (p < 0) {
+            throw NoSuchElementException("key: $key")
+        }
+        val table = paramTable()
+        return CqScanner.parseLong(source, table.valueStart(p), table.valueEnd(p))
+    }
+
+    override fun getLong(key: String, default: Long): Long {
+        val p = if (empty) -1 else indexOfKey(key)
+        if (p < 0) {
+            return default
+        }
+        val table = paramTable()
+        return CqScanner.parseLong(source, table.valueStart(p), table.valueEnd(p), default)
+    }
+
+    override fun getInt(key: String): Int {
+        val p = if (empty) -1 else indexOfKey(key)
+        if (p < 0) {
+            throw NoSuchElementException("key: $key")
+        }
+        val table = paramTable()
+        return CqScanner.parseInt(source, table.valueStart(p), table.valueEnd(p))
+    }
+
+    override fun getInt(key: String, default: Int): Int {
+        val p = if (empty) -1 else indexOfKey(key)
+        if (p < 0) {
+            return default
+        }
+        val table = paramTable()
+        return CqScanner.parseInt(source, table.valueStart(p), table.valueEnd(p), default)
+    }
+
     /**
      * 获取指定字符
      * @see CharSequence.get
      */
-    override operator fun get(index: Int): Char = codeText[index]
+    override operator fun get(index: Int): Char {
+        if (index < 0 || index >= length) {
+            throw IndexOutOfBoundsException("index: $index, length: $length")
+        }
+        return source[codeStart + index]
+    }
 
     /**
-     * 如果不存在[CQ_SPLIT]，即参数切割符，则说明不存在参数
+     * 如果不存在任何包含[CQ_KV]的参数，则说明不存在参数。与[size]一致，不存在`=`的参数不会被计算在内
      */
     override fun isEmpty(): Boolean = empty
 
@@ -144,14 +266,22 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
      * @param startIndex the start index (inclusive).
      * @param endIndex the end index (exclusive).
      */
-    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence = codeText.subSequence(startIndex, endIndex)
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex) {
+            throw IndexOutOfBoundsException("startIndex: $startIndex, endIndex: $endIndex, length: $length")
+        }
+        return source.subSequence(codeStart + startIndex, codeStart + endIndex)
+    }
 
 
     /**
-     * 缓存上一次的查询结果
-     * 线程不安全的
+     * 最近的查询结果缓存, 以键的hash决定所在的槽位。
+     * 槽位中的[KqEntry]是不可变的, 通过[AtomicReferenceArray]读写, 因此可以在多个线程之间安全的共享,
+     * 例如`KQCodeObjects.kt`中的`AtAll`等共享实例。
+     * 在第一次查询参数时创建。
      */
-    private var paramBuffer: Pair<String, String>? = null
+    @Volatile
+    private var paramCache: AtomicReferenceArray<KqEntry>? = null
 
     /**
      * 获取参数
@@ -160,29 +290,68 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
      * @see KQCodeUtils.getParam
      */
     private fun getParam(key: String): String? {
-        val bufferFirst = paramBuffer?.first
-        val bufferSecond = paramBuffer?.second
-        if(bufferFirst != null && bufferFirst == key){
-            return bufferSecond
-        }
-        val paramFind = "$CQ_SPLIT$key$CQ_KV"
-        val phi: Int = codeText.indexOf(paramFind, startIndex)
-        if (phi < 0) {
+        if (empty) {
             return null
         }
-        val startIndex: Int = phi + paramFind.length
-        var pei: Int = codeText.indexOf(CQ_SPLIT, startIndex)
-        if (pei < 0 || pei > endIndex) {
-            pei = endIndex
+        var cache = paramCache
+        if (cache == null) {
+            cache = AtomicReferenceArray(PARAM_CACHE_SIZE)
+            paramCache = cache
         }
-        if (startIndex > codeText.lastIndex || startIndex > pei) {
+        val slot = key.hashCode() and (PARAM_CACHE_SIZE - 1)
+        val cached = cache.get(slot)
+        if (cached != null && cached.key == key) {
+            return cached.value
+        }
+        val p = indexOfKey(key)
+        if (p < 0) {
             return null
         }
-        val subParam = codeText.substring(startIndex, pei)
-        paramBuffer = key to subParam
+        val table = paramTable()
+        val subParam = source.substring(table.valueStart(p), table.valueEnd(p))
+        cache.lazySet(slot, KqEntry(key, subParam))
         return subParam
     }
 
+    /**
+     * 参数偏移表, 在第一次查询参数时构建。
+     * [FastKqParamTable]是不可变的, 并发构建时多个线程得到的结果相同, 以最后一次赋值为准。
+     */
+    @Volatile
+    private var paramTable: FastKqParamTable? = null
+
+    private fun paramTable(): FastKqParamTable {
+        var table = paramTable
+        if (table == null) {
+            table = FastKqParamTable.build(source, startIndex, endIndex)
+            paramTable = table
+        }
+        return table
+    }
+
+    /**
+     * 寻找第一个键为[key]的参数索引, 不存在则返回-1
+     */
+    private fun indexOfKey(key: String): Int = paramTable().indexOfKey(source, key)
+
+    /**
+     * 以参数偏移表为基础的迭代器
+     */
+    private inner class ParamIterator<T>(private val mapper: (FastKqParamTable, Int) -> T) : Iterator<T> {
+        private val table = if (empty) FastKqParamTable.EMPTY else paramTable()
+        private var p = 0
+        override fun hasNext(): Boolean = p < table.count
+        override fun next(): T {
+            if (!hasNext()) throw NoSuchElementException()
+            return mapper(table, p++)
+        }
+    }
+
+    private fun keyAt(table: FastKqParamTable, p: Int): String = source.substring(table.keyStart(p), table.keyEnd(p))
+
+    private fun valueAt(table: FastKqParamTable, p: Int): String =
+        CQDecoder.decodeParams(source.substring(table.valueStart(p), table.valueEnd(p)))
+
     /**
      * Returns a read-only [Set] of all key/value pairs in this map.
      */
@@ -203,8 +372,8 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
         override fun contains(element: Map.Entry<String, String>): Boolean {
             if (empty) return false
 
-            val kv = element.key + CQ_KV + CQEncoder.encodeParams(element.value)
-            return this@FastKQCode.code.contains(kv)
+            val p = indexOfKey(element.key)
+            return p >= 0 && paramTable().valueEquals(source, p, CQEncoder.encodeParams(element.value))
         }
 
         /**
@@ -227,7 +396,8 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
         /**
          * 键值对迭代器
          */
-        override fun iterator(): Iterator<Map.Entry<String, String>> = CqParamEntryIterator(this@FastKQCode.code)
+        override fun iterator(): Iterator<Map.Entry<String, String>> =
+            ParamIterator { table, p -> KqEntry(keyAt(table, p), valueAt(table, p)) }
     }
 
 
@@ -249,8 +419,7 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
          */
         override fun contains(element: String): Boolean {
             if (empty) return false
-            // 判断是否包含：element= 这个字符串
-            return this@FastKQCode.code.contains("$element$CQ_KV")
+            return containsKey(element)
         }
 
         /**
@@ -267,9 +436,7 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
         override fun isEmpty(): Boolean = this@FastKQCode.empty
 
 
-        override fun iterator(): Iterator<String> {
-            return CqParamKeyIterator(this@FastKQCode.code)
-        }
+        override fun iterator(): Iterator<String> = ParamIterator(::keyAt)
 
     }
 
@@ -296,8 +463,7 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
          */
         override fun contains(element: String): Boolean {
             if (empty) return false
-            // 判断有没有 '=element' 字符串
-            return this@FastKQCode.code.contains("$CQ_KV${CQEncoder.encodeParams(element)}")
+            return containsValue(element)
         }
 
         /**
@@ -321,24 +487,151 @@ open class FastKQCode private constructor(private val code: String) : KQCode {
         /**
          * iterator
          */
-        override fun iterator(): Iterator<String> {
-            return CqParamValueIterator(this@FastKQCode.code)
-        }
+        override fun iterator(): Iterator<String> = ParamIterator(::valueAt)
     }
 
 
     companion object Of {
+        /** 参数查询缓存的槽位数量, 必须是2的幂 */
+        private const val PARAM_CACHE_SIZE = 4
+
         /**
          * 得到[FastKQCode]实例的工厂方法。
          * [code]应该是一个cq码字符串.
          */
         @JvmStatic
-        fun byCode(code: String): FastKQCode = FastKQCode(code.trim())
+        fun byCode(code: String): FastKQCode = code.trim().let { FastKQCode(it, 0, it.length) }
+
+        /**
+         * 以[text]中 \[[start], [end]) 范围内的CQ码字符串得到[FastKQCode]实例, 不会复制任何字符。
+         *
+         * 得到的实例会持有[text]的引用, 直到被回收之前[text]都不会被回收,
+         * 因此如果需要长期保存一个较长消息中的较短的CQ码, 使用[byCode]。
+         * @since 1.8.2
+         */
+        @JvmStatic
+        fun byRegion(text: String, start: Int, end: Int): FastKQCode {
+            if (start < 0 || end > text.length || start > end) {
+                throw IndexOutOfBoundsException("start: $start, end: $end, length: ${text.length}")
+            }
+            return FastKQCode(text, start, end)
+        }
     }
 
 }
 
 
+/**
+ * [FastKQCode]的参数偏移表。
+ *
+ * 每[STRIDE]个元素为一个参数: `keyStart, keyEnd, valueStart, valueEnd`, 只记录存在`=`的参数。
+ * 参数数量超过[HASH_THRESHOLD]时, 额外构建一个以`(键的hash shl 32) or 参数索引`排序的hash表,
+ * 查询时通过二分查找定位键, 否则直接按顺序比较。
+ *
+ * 构建完成后不可变。
+ */
+internal class FastKqParamTable private constructor(
+    private val offsets: IntArray,
+    /** 参数数量 */
+    val count: Int,
+    private val hashes: LongArray?
+) {
+    fun keyStart(p: Int): Int = offsets[p * STRIDE]
+    fun keyEnd(p: Int): Int = offsets[p * STRIDE + 1]
+    fun valueStart(p: Int): Int = offsets[p * STRIDE + 2]
+    fun valueEnd(p: Int): Int = offsets[p * STRIDE + 3]
+
+    /**
+     * 寻找第一个键为[key]的参数索引, 不存在则返回-1
+     */
+    fun indexOfKey(code: String, key: String): Int {
+        val hashes = this.hashes
+        if (hashes == null) {
+            for (p in 0 until count) {
+                if (keyEquals(code, p, key)) return p
+            }
+            return -1
+        }
+        val hash = key.hashCode()
+        // 寻找第一个hash相同的位置
+        var low = 0
+        var high = hashes.size
+        val target = hash.toLong() shl 32
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (hashes[mid] < target) low = mid + 1 else high = mid
+        }
+        while (low < hashes.size && (hashes[low] shr 32).toInt() == hash) {
+            val p = hashes[low].toInt()
+            if (keyEquals(code, p, key)) return p
+            low++
+        }
+        return -1
+    }
+
+    /**
+     * 第[p]个参数的键是否与[key]相同
+     */
+    fun keyEquals(code: String, p: Int, key: String): Boolean {
+        val start = keyStart(p)
+        return keyEnd(p) - start == key.length && code.regionMatches(start, key, 0, key.length)
+    }
 
+    /**
+     * 第[p]个参数的原始值是否与[value]相同
+     */
+    fun valueEquals(code: String, p: Int, value: String): Boolean {
+        val start = valueStart(p)
+        return valueEnd(p) - start == value.length && code.regionMatches(start, value, 0, value.length)
+    }
+
+    companion object {
+        private const val STRIDE = 4
+
+        /** 参数数量超过此值时构建hash表 */
+        private const val HASH_THRESHOLD = 8
 
+        val EMPTY = FastKqParamTable(IntArray(0), 0, null)
 
+        /**
+         * 为CQ码[code]构建参数偏移表, [typeStart]为类型的开始索引, [codeEnd]为结尾(`]`字符)索引
+         */
+        fun build(code: String, typeStart: Int, codeEnd: Int): FastKqParamTable {
+            var offsets = IntArray(STRIDE * 4)
+            var count = 0
+            var split = CqScanner.indexOf(code, ',', typeStart, codeEnd)
+            while (split >= 0) {
+                val keyStart = split + 1
+                split = CqScanner.indexOf(code, ',', keyStart, codeEnd)
+                val paramEnd = if (split < 0) codeEnd else split
+                val kv = CqScanner.indexOf(code, '=', keyStart, paramEnd)
+                if (kv >= 0) {
+                    if ((count + 1) * STRIDE > offsets.size) {
+                        offsets = offsets.copyOf(offsets.size * 2)
+                    }
+                    val i = count * STRIDE
+                    offsets[i] = keyStart
+                    offsets[i + 1] = kv
+                    offsets[i + 2] = kv + 1
+                    offsets[i + 3] = paramEnd
+                    count++
+                }
+            }
+            if (count == 0) {
+                return EMPTY
+            }
+            var hashes: LongArray? = null
+            if (count > HASH_THRESHOLD) {
+                hashes = LongArray(count) { p ->
+                    var h = 0
+                    for (i in offsets[p * STRIDE] until offsets[p * STRIDE + 1]) {
+                        h = 31 * h + code[i].toInt()
+                    }
+                    (h.toLong() shl 32) or p.toLong()
+                }
+                hashes.sort()
+            }
+            return FastKqParamTable(offsets, count, hashes)
+        }
+    }
+}
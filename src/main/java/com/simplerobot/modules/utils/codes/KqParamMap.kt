@@ -0,0 +1,370 @@
+/*
+ *
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  simple-robot-module-cqcodeutils
+ *  File     KqParamMap.kt
+ *  data     2026-10-18
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ *
+ */
+
+package com.simplerobot.modules.utils.codes
+
+import com.simplerobot.modules.utils.KqEntry
+
+
+/**
+ * 以一个`key, value, key, value...`的扁平数组为载体的不可变[Map]。
+ *
+ * 绝大多数CQ码只有一到五个参数, 此时按顺序比较键的速度与hash表相差无几,
+ * 但是不需要为每个参数创建键值对对象与hash表, 每个实例只有自身与一个数组。
+ * 参数数量超过[ParamMapBuilder.ARRAY_THRESHOLD]时由[ParamMapBuilder]构建为[LinkedHashMap]。
+ *
+ * 迭代顺序与参数的添加顺序一致。
+ *
+ * @since 1.8.2
+ */
+internal class ArrayParamMap(private val table: Array<String>) : AbstractMap<String, String>() {
+
+    override val size: Int get() = table.size ushr 1
+
+    override fun isEmpty(): Boolean = table.isEmpty()
+
+    /**
+     * 寻找键[key]在[table]中的索引, 不存在则返回-1
+     */
+    private fun indexOfKey(key: String): Int {
+        val table = this.table
+        var i = 0
+        while (i < table.size) {
+            if (table[i] == key) return i
+            i += 2
+        }
+        return -1
+    }
+
+    override fun containsKey(key: String): Boolean = indexOfKey(key) >= 0
+
+    override fun containsValue(value: String): Boolean {
+        val table = this.table
+        var i = 1
+        while (i < table.size) {
+            if (table[i] == value) return true
+            i += 2
+        }
+        return false
+    }
+
+    override fun get(key: String): String? {
+        val i = indexOfKey(key)
+        return if (i < 0) null else table[i + 1]
+    }
+
+    override val entries: Set<Map.Entry<String, String>>
+        get() = object : AbstractSet<Map.Entry<String, String>>() {
+            override val size: Int get() = this@ArrayParamMap.size
+            override fun contains(element: Map.Entry<String, String>): Boolean {
+                val i = indexOfKey(element.key)
+                return i >= 0 && table[i + 1] == element.value
+            }
+            override fun iterator(): Iterator<Map.Entry<String, String>> = TableIterator(0) { KqEntry(table[it], table[it + 1]) }
+        }
+
+    override val keys: Set<String>
+        get() = object : AbstractSet<String>() {
+            override val size: Int get() = this@ArrayParamMap.size
+            override fun contains(element: String): Boolean = containsKey(element)
+            override fun iterator(): Iterator<String> = TableIterator(0) { table[it] }
+        }
+
+    override val values: Collection<String>
+        get() = object : AbstractCollection<String>() {
+            override val size: Int get() = this@ArrayParamMap.size
+            override fun contains(element: String): Boolean = containsValue(element)
+            override fun iterator(): Iterator<String> = TableIterator(1) { table[it] }
+        }
+
+    /**
+     * 从[table]的[from]开始每次前进2个元素的迭代器
+     */
+    private inner class TableIterator<T>(from: Int, private val mapper: (Int) -> T) : Iterator<T> {
+        private var i = from
+        override fun hasNext(): Boolean = i < table.size
+        override fun next(): T {
+            if (!hasNext()) throw NoSuchElementException()
+            val value = mapper(i)
+            i += 2
+            return value
+        }
+    }
+}
+
+
+/**
+ * 不可变参数map的构建器。
+ *
+ * 预计的参数数量不超过[ARRAY_THRESHOLD]时以数组收集并构建为[ArrayParamMap], 否则直接使用[LinkedHashMap]。
+ * 与[MutableMap.put]相同, 重复的键会覆盖之前的值且保留原本的位置。
+ *
+ * @param capacity 预计的参数数量, 超过此数量时依然可以继续添加。
+ */
+internal class ParamMapBuilder(capacity: Int) {
+    private var table: Array<String?>? = if (capacity <= ARRAY_THRESHOLD) arrayOfNulls(capacity * 2) else null
+    private var map: MutableMap<String, String>? = if (table == null) LinkedHashMap(mapCapacity(capacity)) else null
+    private var size = 0
+
+    fun put(key: String, value: String): ParamMapBuilder {
+        val map = this.map
+        if (map != null) {
+            map[key] = value
+            return this
+        }
+        var table = this.table!!
+        var i = 0
+        while (i < size * 2) {
+            if (table[i] == key) {
+                table[i + 1] = value
+                return this
+            }
+            i += 2
+        }
+        if (size == ARRAY_THRESHOLD) {
+            // 超出阈值, 转为hash表
+            val newMap = LinkedHashMap<String, String>(mapCapacity(size * 2))
+            putTo(newMap)
+            newMap[key] = value
+            this.map = newMap
+            this.table = null
+            return this
+        }
+        if (size * 2 == table.size) {
+            table = table.copyOf(maxOf(4, table.size * 2).coerceAtMost(ARRAY_THRESHOLD * 2))
+            this.table = table
+        }
+        table[size * 2] = key
+        table[size * 2 + 1] = value
+        size++
+        return this
+    }
+
+    fun putAll(from: Map<String, String>): ParamMapBuilder {
+        for ((key, value) in from) {
+            put(key, value)
+        }
+        return this
+    }
+
+    private fun putTo(map: MutableMap<String, String>) {
+        val table = this.table!!
+        for (i in 0 until size) {
+            map[table[i * 2]!!] = table[i * 2 + 1]!!
+        }
+    }
+
+    /**
+     * 构建不可变的参数map。构建之后此构建器不应再被使用。
+     */
+    fun build(): Map<String, String> {
+        val map = this.map
+        if (map != null) {
+            return map
+        }
+        if (size == 0) {
+            return emptyMap()
+        }
+        val table = this.table!!
+        @Suppress("UNCHECKED_CAST")
+        return ArrayParamMap((if (table.size == size * 2) table else table.copyOf(size * 2)) as Array<String>)
+    }
+
+    companion object {
+        /** 参数数量不超过此值时使用[ArrayParamMap] */
+        const val ARRAY_THRESHOLD = 8
+
+        /**
+         * 复制[map]为不可变的参数map
+         */
+        fun copyOf(map: Map<String, String>): Map<String, String> =
+            if (map is ArrayParamMap) map else ParamMapBuilder(map.size).putAll(map).build()
+    }
+}
+
+
+/**
+ * 写时复制的参数map, 作为[MutableMapKQCode]的参数载体。
+ *
+ * [MapKQCode]与[MutableMapKQCode]相互转化时双方共享同一个map, 只有在真正发生修改时才会复制一次。
+ * [entries]、[keys]与[values]视图不会直接暴露内部的map: 迭代器遍历的是创建时的map,
+ * 通过视图进行的修改同样会经过[owned], 因此在视图创建之后才被共享的map也不会被修改。
+ *
+ * 所有的修改(包括通过视图进行的修改)都会增加[modCount], 以此判断参数是否发生过变化。
+ *
+ * 线程不安全。
+ */
+internal class CowParamMap private constructor(
+    /** 当前的参数 */
+    private var map: Map<String, String>,
+    /** 未被共享时与[map]为同一个实例, 被共享时为null */
+    private var mutableMap: MutableMap<String, String>?
+) : MutableMap<String, String> {
+
+    /** 参数被修改的次数 */
+    var modCount: Int = 0
+        private set
+
+    /**
+     * 得到可以修改的map, 如果当前的map被共享则先复制
+     */
+    private fun owned(): MutableMap<String, String> {
+        var owned = mutableMap
+        if (owned == null) {
+            owned = LinkedHashMap(mapCapacity(map.size))
+            owned.putAll(map)
+            map = owned
+            mutableMap = owned
+        }
+        return owned
+    }
+
+    /**
+     * 得到当前参数的不可变map。
+     * 参数数量不超过[ParamMapBuilder.ARRAY_THRESHOLD]时复制为[ArrayParamMap], 否则直接共享当前的map。
+     */
+    fun toImmutable(): Map<String, String> {
+        val map = this.map
+        if (map.size <= ParamMapBuilder.ARRAY_THRESHOLD) {
+            return ParamMapBuilder.copyOf(map)
+        }
+        mutableMap = null
+        return map
+    }
+
+    override val size: Int get() = map.size
+    override fun isEmpty(): Boolean = map.isEmpty()
+    override fun containsKey(key: String): Boolean = map.containsKey(key)
+    override fun containsValue(value: String): Boolean = map.containsValue(value)
+    override fun get(key: String): String? = map[key]
+
+    override fun put(key: String, value: String): String? {
+        modCount++
+        return owned().put(key, value)
+    }
+
+    override fun putAll(from: Map<out String, String>) {
+        if (from.isNotEmpty()) {
+            modCount++
+            owned().putAll(from)
+        }
+    }
+
+    override fun remove(key: String): String? {
+        if (!map.containsKey(key)) {
+            return null
+        }
+        modCount++
+        return owned().remove(key)
+    }
+
+    override fun clear() {
+        modCount++
+        if (mutableMap == null) {
+            // 被共享时不需要复制
+            val empty = LinkedHashMap<String, String>()
+            map = empty
+            mutableMap = empty
+        } else {
+            mutableMap!!.clear()
+        }
+    }
+
+    override val entries: MutableSet<MutableMap.MutableEntry<String, String>>
+        get() = object : AbstractMutableSet<MutableMap.MutableEntry<String, String>>() {
+            override val size: Int get() = map.size
+            override fun add(element: MutableMap.MutableEntry<String, String>): Boolean = throw UnsupportedOperationException()
+            override fun contains(element: MutableMap.MutableEntry<String, String>): Boolean = map[element.key] == element.value
+            override fun remove(element: MutableMap.MutableEntry<String, String>): Boolean =
+                contains(element) && this@CowParamMap.remove(element.key) != null
+            override fun clear() = this@CowParamMap.clear()
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<String, String>> =
+                ViewIterator { CowEntry(it.key, it.value) }
+        }
+
+    override val keys: MutableSet<String>
+        get() = object : AbstractMutableSet<String>() {
+            override val size: Int get() = map.size
+            override fun add(element: String): Boolean = throw UnsupportedOperationException()
+            override fun contains(element: String): Boolean = map.containsKey(element)
+            override fun remove(element: String): Boolean = this@CowParamMap.remove(element) != null
+            override fun clear() = this@CowParamMap.clear()
+            override fun iterator(): MutableIterator<String> = ViewIterator { it.key }
+        }
+
+    override val values: MutableCollection<String>
+        get() = object : AbstractMutableCollection<String>() {
+            override val size: Int get() = map.size
+            override fun add(element: String): Boolean = throw UnsupportedOperationException()
+            override fun contains(element: String): Boolean = map.containsValue(element)
+            override fun clear() = this@CowParamMap.clear()
+            override fun iterator(): MutableIterator<String> = ViewIterator { it.value }
+        }
+
+    /**
+     * 遍历创建时的map。
+     * 通过[remove]修改时, 如果遍历的依然是当前独占的map则直接通过迭代器移除, 否则经过[owned]复制后移除。
+     */
+    private inner class ViewIterator<T>(private val mapper: (Map.Entry<String, String>) -> T) : MutableIterator<T> {
+        private val source = map
+        private val iterator = source.entries.iterator()
+        private var last: Map.Entry<String, String>? = null
+        override fun hasNext(): Boolean = iterator.hasNext()
+        override fun next(): T {
+            val entry = iterator.next()
+            last = entry
+            return mapper(entry)
+        }
+        override fun remove() {
+            val entry = last ?: throw IllegalStateException()
+            last = null
+            modCount++
+            if (source === mutableMap) {
+                (iterator as MutableIterator<*>).remove()
+            } else {
+                owned().remove(entry.key)
+            }
+        }
+    }
+
+    /**
+     * 视图中的键值对, 通过[setValue]修改时经过[owned], 被共享时才进行复制
+     */
+    private inner class CowEntry(override val key: String, override var value: String) : MutableMap.MutableEntry<String, String> {
+        override fun setValue(newValue: String): String {
+            val old = value
+            value = newValue
+            modCount++
+            owned()[key] = newValue
+            return old
+        }
+        override fun equals(other: Any?): Boolean = other is Map.Entry<*, *> && key == other.key && value == other.value
+        override fun hashCode(): Int = key.hashCode() xor value.hashCode()
+        override fun toString(): String = "$key=$value"
+    }
+
+    override fun equals(other: Any?): Boolean = other === this || map == other
+    override fun hashCode(): Int = map.hashCode()
+    override fun toString(): String = map.toString()
+
+    companion object {
+        /** 以一个可以直接修改的map构建 */
+        fun owned(map: MutableMap<String, String>): CowParamMap = CowParamMap(map, map)
+
+        /** 以一个共享的map构建, 第一次修改时才会进行复制 */
+        fun shared(map: Map<String, String>): CowParamMap = CowParamMap(map, null)
+    }
+}
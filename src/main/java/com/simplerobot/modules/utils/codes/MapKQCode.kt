@@ -28,7 +28,31 @@ import com.simplerobot.modules.utils.*
  *
  *******************************************************/
 
-private val MAP_SPLIT_REGEX = Regex("=")
+/**
+ * 将`key=value`格式的参数依次交给[put], 只切割第一个`=`。
+ * 与[MapKQCode.byCode]以及[FastKQCode]一致, 不存在`=`的参数会被忽略。
+ */
+private inline fun putParams(params: Array<out String>, put: (key: String, value: String) -> Unit) {
+    for (param in params) {
+        val kv = param.indexOf('=')
+        if (kv >= 0) {
+            put(param.substring(0, kv), param.substring(kv + 1))
+        }
+    }
+}
+
+/** 将`key=value`格式的参数转化为不可变的参数map */
+private fun paramsOf(params: Array<out String>): Map<String, String> =
+    ParamMapBuilder(params.size).also { builder -> putParams(params) { k, v -> builder.put(k, v) } }.build()
+
+/** 将`key=value`格式的参数转化为可变的参数map */
+private fun mutableParamsOf(params: Array<out String>): MutableMap<String, String> =
+    LinkedHashMap<String, String>(mapCapacity(params.size)).also { map -> putParams(params) { k, v -> map[k] = v } }
+
+/**
+ * 计算容纳[size]个元素且不需要扩容的hash表初始容量
+ */
+internal fun mapCapacity(size: Int): Int = if (size < 3) size + 1 else size + size / 3 + 1
 
 /**
  * CQ码封装类, 以[Map]作为参数载体
@@ -45,19 +69,73 @@ private val MAP_SPLIT_REGEX = Regex("=")
  * @since 1.8.0
  */
 open class MapKQCode
-internal constructor(open val params: Map<String, String>, override var type: String) :
+internal constructor(open val params: Map<String, String>, type: String) :
         KQCode,
         Map<String, String> by params {
     internal constructor(type: String) : this(emptyMap(), type)
-    internal constructor(type: String, params: Map<String, String>) : this(params.toMap(), type)
-    internal constructor(type: String, vararg params: Pair<String, String>) : this(mapOf(*params), type)
-    internal constructor(type: String, vararg params: String) : this(mapOf(*params.map {
-        val split = it.split(MAP_SPLIT_REGEX, 2)
-        split[0] to split[1]
-    }.toTypedArray()), type)
+    internal constructor(type: String, params: Map<String, String>) : this(ParamMapBuilder.copyOf(params), type)
+    internal constructor(type: String, vararg params: Pair<String, String>) :
+            this(ParamMapBuilder(params.size).also { b -> params.forEach { (k, v) -> b.put(k, v) } }.build(), type)
+    internal constructor(type: String, vararg params: String) : this(paramsOf(params), type)
 
     /** internal constructor for mutable kqCode */
-    internal constructor(mutableKQCode: MutableKQCode) : this(mutableKQCode.toMap(), mutableKQCode.type)
+    internal constructor(mutableKQCode: MutableKQCode) : this(ParamMapBuilder.copyOf(mutableKQCode), mutableKQCode.type)
+
+    /**
+     * internal constructor for parsed code.
+     * [codeText]为解析时的CQ码字符串, 其参数与[params]一一对应且顺序一致。
+     * [rawValues]为其中存在转义字符的参数的原始值。
+     */
+    private constructor(params: Map<String, String>, type: String, codeText: String, rawValues: Map<String, String>) : this(params, type) {
+        this.rawValues = rawValues
+        this.codeText = codeText
+    }
+
+    /**
+     * toString的值记录, 在第一次获取的时候才会去实际计算。
+     * 如果是通过[byCode]解析且指定了`keepText`的实例, 则为解析时的CQ码字符串。
+     */
+    @Volatile
+    private var codeText: String? = null
+
+    /**
+     * [codeText]为解析时的原始CQ码字符串时, 记录其中存在转义字符的参数的原始值, 不存在转义字符时为空。
+     * 不在其中的参数反转义前后相同, [getNoDecode]直接返回[params]中的值。
+     * 为null时说明[codeText]不是原始的字符串。
+     */
+    private var rawValues: Map<String, String>? = null
+
+    /**
+     * CQ码的类型。修改类型后原本的CQ码字符串不再有效。
+     */
+    override var type: String = type
+        set(value) {
+            field = value
+            invalidate()
+        }
+
+    /**
+     * 参数或类型发生变化时清除CQ码字符串的记录, 下一次[toString]时重新计算
+     */
+    internal fun invalidate() {
+        rawValues = null
+        codeText = null
+    }
+
+    /**
+     * 在使用CQ码字符串的记录之前确认其依然有效。参数不可变, 因此总是有效。
+     */
+    internal open fun validateText() {}
+
+    /**
+     * 将CQ码字符串的记录交给参数相同的[other], 使其不需要重新拼接
+     */
+    internal fun <T : MapKQCode> shareTextWith(other: T): T {
+        validateText()
+        other.rawValues = rawValues
+        other.codeText = codeText
+        return other
+    }
 
     /**
      * Returns the length of this character sequence.
@@ -68,9 +146,14 @@ internal constructor(open val params: Map<String, String>, override var type: St
 
 
     /**
-     * 获取转义后的字符串
+     * 获取转义后的字符串。
+     * 如果是通过[byCode]解析且指定了`keepText`的实例, 则直接取解析时的原始值, 不会重新转义。
      */
-    override fun getNoDecode(key: String) = CQEncoder.encodeParamsOrNull(this[key])
+    override fun getNoDecode(key: String): String? {
+        validateText()
+        val rawValues = this.rawValues ?: return CQEncoder.encodeParamsOrNull(this[key])
+        return rawValues[key] ?: params[key]
+    }
 
     /**
      * Returns the character at the specified [index] in this character sequence.
@@ -90,32 +173,61 @@ internal constructor(open val params: Map<String, String>, override var type: St
     override fun subSequence(startIndex: Int, endIndex: Int): CharSequence = toString().subSequence(startIndex, endIndex)
 
 
-    /**
-     * toString的值记录。因为是不可变类，因此toString是不会变的
-     * 在获取的时候才会去实际计算，且仅计算一次。
-     */
-    private val _toString: String by lazy { KQCodeUtils.toCq(type, map = this) }
-
     /** toString */
-    override fun toString(): String = _toString
+    override fun toString(): String {
+        validateText()
+        var text = codeText
+        if (text == null) {
+            text = KQCodeUtils.toCq(type, map = params)
+            codeText = text
+        }
+        return text
+    }
 
 
 
     /** 从KQCode转到CQCode */
     @Suppress("OverridingDeprecatedMember")
-    override fun toCQCode(): com.forte.qqrobot.beans.cqcode.CQCode = com.forte.qqrobot.beans.cqcode.CQCode.of(type, mutableMapOf(*params.entries.map { it.key to CQEncoder.encodeParams(it.value) }.toTypedArray()))
+    override fun toCQCode(): com.forte.qqrobot.beans.cqcode.CQCode {
+        validateText()
+        if (rawValues != null) {
+            codeText?.let { return com.forte.qqrobot.beans.cqcode.CQCode.of(it) }
+        }
+        return com.forte.qqrobot.beans.cqcode.CQCode.of(type, mutableMapOf(*params.entries.map { it.key to CQEncoder.encodeParams(it.value) }.toTypedArray()))
+    }
 
 
     /**
-     * 转化为参数可变的[MutableKQCode]
+     * 转化为参数可变的[MutableKQCode]。
+     * 转化后的实例与当前实例共享参数, 直到第一次修改时才会进行复制。
      */
-    override fun mutable(): MutableKQCode = MutableMapKQCode(this)
+    override fun mutable(): MutableKQCode = shareTextWith(MutableMapKQCode(CowParamMap.shared(params), type))
 
     /**
      * 转化为不可变类型[KQCode]
      */
     override fun immutable(): KQCode = this
 
+    /**
+     * 复制参数后直接构建新的[MapKQCode], 而不经过[MutableMapKQCode]
+     */
+    override fun with(key: String, value: String): KQCode {
+        if (params[key] == value) return immutable()
+        return MapKQCode(ParamMapBuilder(size + 1).putAll(params).put(key, value).build(), type)
+    }
+
+    /**
+     * 复制参数后直接构建新的[MapKQCode], 而不经过[MutableMapKQCode]
+     */
+    override fun without(key: String): KQCode {
+        if (!params.containsKey(key)) return immutable()
+        val builder = ParamMapBuilder(size - 1)
+        for ((k, v) in params) {
+            if (k != key) builder.put(k, v)
+        }
+        return MapKQCode(builder.build(), type)
+    }
+
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -135,50 +247,119 @@ internal constructor(open val params: Map<String, String>, override var type: St
         return result
     }
 
+    /**
+     * [parseCode]的解析结果
+     */
+    private class ParsedCode<M>(
+        val type: String,
+        val map: M,
+        /** 放入的参数数量 */
+        val count: Int,
+        /** 去除首尾空白后的CQ码字符串。未要求保留, 或者存在被忽略的空格或参数时为null */
+        val text: String?,
+        /** 存在转义字符的参数的原始值, 只在保留了[text]时记录 */
+        val rawValues: ParamMapBuilder?
+    )
+
     /** [MapKQCode] companion object. */
     companion object Of {
-        /** 参数切割用的正则 */
-        private val TEMP_SPLIT_REGEX = Regex(" *, *")
         /**
-         * 将CQ码字符串切割为参数列表
-         * 返回的键值对为 `type to split`
+         * 单次扫描CQ码字符串, 将参数通过[put]放入[newMap]所创建的容器中。
+         * [newMap]的参数为参数的最大数量, 用于预设容器的容量。
+         * [keepText]为true时记录原始的CQ码字符串与存在转义字符的参数的原始值。
+         *
+         * 与原本以` *, *`进行切割的结果一致, `,`两侧的空格会被忽略;
+         * 不存在`=`的参数会被忽略, 与[FastKQCode]一致。
          */
-        @Suppress("NOTHING_TO_INLINE")
-        private inline fun splitCode(code: String): Pair<String, List<String>> {
-            var tempText = code.trim()
+        private inline fun <M> parseCode(
+            code: String, decode: Boolean, keepText: Boolean,
+            newMap: (Int) -> M, put: M.(key: String, value: String) -> Unit
+        ): ParsedCode<M> {
+            var start = 0
+            var end = code.length
+            while (start < end && code[start].isWhitespace()) start++
+            while (end > start && code[end - 1].isWhitespace()) end--
             // 不是[CQ:开头，或者不是]结尾都不行
-            if (!tempText.startsWith("[CQ:") || !tempText.endsWith("]")) {
+            if (end - start <= CQ_HEAD.length || !code.startsWith(CQ_HEAD, start) || code[end - 1] != ']') {
                 throw IllegalArgumentException("not starts with '[CQ:' or not ends with ']'")
             }
-            // 是[CQ:开头，]结尾，切割并转化
-            tempText = tempText.substring(4, tempText.lastIndex)
+            val close = end - 1
+            val typeStart = start + CQ_HEAD.length
+            var split = CqScanner.indexOf(code, ',', typeStart, close)
+            var count = 0
+            var i = split
+            while (i >= 0) {
+                count++
+                i = CqScanner.indexOf(code, ',', i + 1, close)
+            }
+            val map = newMap(count)
+            val typeEnd = if (split < 0) close else trimSpaceEnd(code, typeStart, split)
+            val type = code.substring(typeStart, typeEnd)
+            // 是否与原本的字符串一一对应
+            var exact = keepText && (split < 0 || typeEnd == split)
+            var rawValues: ParamMapBuilder? = null
+            var added = 0
+            while (split >= 0) {
+                var paramStart = split + 1
+                while (paramStart < close && code[paramStart] == ' ') paramStart++
+                if (paramStart != split + 1) exact = false
+                split = CqScanner.indexOf(code, ',', paramStart, close)
+                val paramEnd = if (split < 0) close else trimSpaceEnd(code, paramStart, split)
+                if (split >= 0 && paramEnd != split) exact = false
+                var kv = paramStart
+                while (kv < paramEnd && code[kv] != '=') kv++
+                if (kv < paramEnd) {
+                    val key = code.substring(paramStart, kv)
+                    val value = if (decode) decodeValue(code, kv + 1, paramEnd) else code.substring(kv + 1, paramEnd)
+                    if (exact && value.length != paramEnd - kv - 1) {
+                        (rawValues ?: ParamMapBuilder(1).also { rawValues = it }).put(key, code.substring(kv + 1, paramEnd))
+                    }
+                    map.put(key, value)
+                    added++
+                } else {
+                    exact = false
+                }
+            }
+            val text = if (!exact) null else if (start == 0 && end == code.length) code else code.substring(start, end)
+            return ParsedCode(type, map, added, text, rawValues)
+        }
 
-            val split = tempText.split(TEMP_SPLIT_REGEX)
-            val type = split[0]
-            return type to split
+        /** 去除[end]之前的空格, 返回新的结尾索引 */
+        private fun trimSpaceEnd(code: String, start: Int, end: Int): Int {
+            var e = end
+            while (e > start && code[e - 1] == ' ') e--
+            return e
         }
 
+        /** 截取并反转义参数值, 不存在转义字符时只截取一次 */
+        private fun decodeValue(code: String, start: Int, end: Int): String =
+            if (CqEscapes.indexOfDecode(code, start, end, CqEscapes.PARAMS_DECODE_TABLE) < 0) {
+                code.substring(start, end)
+            } else {
+                CQDecoder.decodeParamsTo(StringBuilder(end - start), code, start, end).toString()
+            }
+
         /**
-         * 根据CQ码字符串获取[MapKQCode]实例
+         * 根据CQ码字符串获取[MapKQCode]实例。
+         *
+         * 如果[keepText]为true, 实例会保留原始的CQ码字符串以及其中存在转义字符的参数的原始值,
+         * [toString]、[getNoDecode]与[toCQCode]不再重新拼接与转义。
+         * 代价是实例在整个生命周期内都会引用整个CQ码字符串, 对于大量只需要读取参数的实例会明显增加内存占用,
+         * 因此默认不保留, [toString]在第一次调用时拼接并缓存。
+         *
+         * @param keepText 是否保留原始的CQ码字符串。只有[decode]为true时有效
          */
         @JvmStatic
         @JvmOverloads
-        fun byCode(code: String, decode: Boolean = true): MapKQCode {
-            val (type, split) = splitCode(code)
-
-            return if (split.size > 1) {
-                if (decode) {
-                    // 参数解码
-                    val map = split.subList(1, split.size).map {
-                        val sp = it.split(Regex("="), 2)
-                        sp[0] to CQDecoder.decodeParams(sp[1])
-                    }.toMap()
-                    MapKQCode(map, type)
-                } else {
-                    MapKQCode(type, *split.subList(1, split.size).toTypedArray())
-                }
+        fun byCode(code: String, decode: Boolean = true, keepText: Boolean = false): MapKQCode {
+            val parsed = parseCode(code, decode, keepText && decode, ::ParamMapBuilder) { k, v -> put(k, v) }
+            val params = parsed.map.build()
+            val text = parsed.text
+            // 存在重复的键时参数与原本的字符串不再一一对应
+            return if (text != null && params.size == parsed.count) {
+                MapKQCode(params, parsed.type, text, parsed.rawValues?.build() ?: emptyMap())
             } else {
-                MapKQCode(type)
+                MapKQCode(params, parsed.type)
             }
         }
 
@@ -193,27 +374,13 @@ internal constructor(open val params: Map<String, String>, override var type: St
         fun byParamString(type: String, vararg params: String): MapKQCode = MapKQCode(type, *params)
 
         /**
-         * 根据CQ码字符串获取[MapKQCode]实例
+         * 根据CQ码字符串获取[MutableMapKQCode]实例
          */
         @JvmStatic
         @JvmOverloads
         fun mutableByCode(code: String, decode: Boolean = true): MutableMapKQCode {
-            val (type, split) = splitCode(code)
-
-            return if (split.size > 1) {
-                if (decode) {
-                    // 参数解码
-                    val map: MutableMap<String, String> = split.subList(1, split.size).map {
-                        val sp = it.split(Regex("="), 2)
-                        sp[0] to CQDecoder.decodeParams(sp[1])
-                    }.toMap().toMutableMap()
-                    MutableMapKQCode(map, type)
-                } else {
-                    MutableMapKQCode(type, *split.subList(1, split.size).toTypedArray())
-                }
-            } else {
-                MutableMapKQCode(type)
-            }
+            val parsed = parseCode(code, decode, false, { LinkedHashMap<String, String>(mapCapacity(it)) }) { k, v -> this[k] = v }
+            return MutableMapKQCode(parsed.map, parsed.type)
         }
 
 
@@ -245,17 +412,15 @@ internal constructor(open val params: Map<String, String>, override var type: St
  */
 @Suppress("DELEGATED_MEMBER_HIDES_SUPERTYPE_OVERRIDE")
 class MutableMapKQCode
-internal constructor(override val params: MutableMap<String, String>, type: String) :
-        MapKQCode(params, type),
+internal constructor(private val cow: CowParamMap, type: String) :
+        MapKQCode(cow, type),
         MutableKQCode,
-        MutableMap<String, String> by params {
+        MutableMap<String, String> by cow {
+    internal constructor(params: MutableMap<String, String>, type: String) : this(CowParamMap.owned(params), type)
     internal constructor(type: String) : this(mutableMapOf(), type)
     internal constructor(type: String, params: Map<String, String>) : this(params.toMutableMap(), type)
     internal constructor(type: String, vararg params: Pair<String, String>) : this(mutableMapOf(*params), type)
-    internal constructor(type: String, vararg params: String) : this(mutableMapOf(*params.map {
-        val split = it.split(MAP_SPLIT_REGEX, 2)
-        split[0] to split[1]
-    }.toTypedArray()), type)
+    internal constructor(type: String, vararg params: String) : this(mutableParamsOf(params), type)
 
     /** internal constructor for kqCode */
     internal constructor(kqCode: KQCode) : this(kqCode.toMutableMap(), kqCode.type)
@@ -265,11 +430,27 @@ internal constructor(override val params: MutableMap<String, String>, type: Stri
      */
     override fun mutable(): MutableKQCode = this
 
+    /** 写时复制的参数 */
+    override val params: MutableMap<String, String> get() = cow
+
     /**
-     * 转化为不可变类型[KQCode]
+     * 转化为不可变类型[KQCode]。
+     * 参数较多时转化后的实例与当前实例共享参数, 直到当前实例下一次修改时才会进行复制。
      */
-    override fun immutable(): KQCode = MapKQCode(this)
+    override fun immutable(): KQCode = shareTextWith(MapKQCode(cow.toImmutable(), type))
 
-    /** toString */
-    override fun toString(): String = KQCodeUtils.toCq(type, map = this)
+    /** 上一次确认CQ码字符串的记录有效时[cow]的修改次数 */
+    private var textModCount: Int = cow.modCount
+
+    /**
+     * 参数无论通过何种方式被修改(包括[params]与[entries]、[keys]、[values]视图), 都会增加[CowParamMap.modCount],
+     * 因此[toString]、[length]与[get]在两次修改之间只会进行一次拼接。
+     */
+    override fun validateText() {
+        val modCount = cow.modCount
+        if (modCount != textModCount) {
+            textModCount = modCount
+            invalidate()
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_copy_on_write.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.KQCode;
+import com.simplerobot.modules.utils.KQCodeUtils;
+import com.simplerobot.modules.utils.MutableKQCode;
+import com.simplerobot.modules.utils.codes.MapKQCode;
+import com.simplerobot.modules.utils.codes.MutableMapKQCode;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ *
+ * 测试{@link MapKQCode}与{@link MutableMapKQCode}相互转化时的写时复制:
+ * 无论通过哪一种方式修改可变的一方(包括在转化之前就得到的视图与迭代器), 不可变的一方都不会发生变化。
+ *
+ * 参数的数量分别为不超过与超过{@link MapKQCode}以数组保存参数的阈值的情况。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_copy_on_write {
+
+	public static void main(String[] args) {
+		for (int size : new int[]{3, 10}) {
+			String text = code(size);
+
+			// 可变 -> 不可变
+			checkAll(text, code -> code.put("k0", "X"));
+			checkAll(text, code -> code.putAll(java.util.Collections.singletonMap("k1", "X")));
+			checkAll(text, code -> code.remove("k0"));
+			checkAll(text, Map::clear);
+			checkAll(text, code -> code.keySet().remove("k0"));
+			checkAll(text, code -> code.keySet().removeIf(k -> k.endsWith("1")));
+			checkAll(text, code -> code.values().remove("v0"));
+			checkAll(text, code -> code.entrySet().iterator().next().setValue("X"));
+			checkAll(text, code -> {
+				Iterator<String> iterator = code.keySet().iterator();
+				iterator.next();
+				iterator.remove();
+			});
+
+			// 转化之前得到的视图
+			checkView(text, code -> code.entrySet(), entries -> entries.iterator().next().setValue("Y"));
+			checkView(text, code -> code.keySet(), keys -> keys.remove("k0"));
+			checkView(text, code -> code.values(), Collection::clear);
+			checkIterator(text);
+
+			// 不可变 -> 可变
+			MapKQCode immutable = MapKQCode.byCode(text);
+			MutableKQCode mutable = immutable.mutable();
+			mutable.put("k0", "X");
+			mutable.entrySet().iterator().next().setValue("Z");
+			mutable.keySet().remove("k1");
+			check(immutable.toString().equals(text) && immutable.size() == size, "mutable() isolation", text);
+			check("Z".equals(mutable.get("k0")) && !mutable.containsKey("k1"), "mutable() writes", text);
+		}
+		System.out.println("copy on write: ok");
+	}
+
+	/**
+	 * 在[MutableMapKQCode.immutable]之后通过[write]修改可变的一方
+	 */
+	private static void checkAll(String text, Consumer<MutableMapKQCode> write) {
+		MutableMapKQCode mutable = MapKQCode.mutableByCode(text);
+		Map<String, String> expected = new LinkedHashMap<>(mutable);
+		KQCode immutable = mutable.immutable();
+		write.accept(mutable);
+		check(!expected.equals(new LinkedHashMap<>(mutable)), "write has no effect", text);
+		check(expected.equals(new LinkedHashMap<>(immutable)), "immutable changed", text);
+		check(immutable.toString().equals(text), "immutable toString changed", text);
+		check(MapKQCode.byCode(mutable.toString()).equals(MapKQCode.byMap(mutable.getType(), mutable)), "mutable toString", text);
+	}
+
+	/**
+	 * 在[MutableMapKQCode.immutable]之前得到视图, 之后再通过视图修改
+	 */
+	private static <V> void checkView(String text, java.util.function.Function<MutableMapKQCode, V> view, Consumer<V> write) {
+		MutableMapKQCode mutable = MapKQCode.mutableByCode(text);
+		Map<String, String> expected = new LinkedHashMap<>(mutable);
+		V v = view.apply(mutable);
+		KQCode immutable = mutable.immutable();
+		write.accept(v);
+		check(!expected.equals(new LinkedHashMap<>(mutable)), "view write has no effect", text);
+		check(expected.equals(new LinkedHashMap<>(immutable)), "immutable changed by view", text);
+	}
+
+	/**
+	 * 迭代到一半时转化, 之后再通过迭代器移除
+	 */
+	private static void checkIterator(String text) {
+		MutableMapKQCode mutable = MapKQCode.mutableByCode(text);
+		Map<String, String> expected = new LinkedHashMap<>(mutable);
+		Iterator<Map.Entry<String, String>> iterator = mutable.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+		iterator.next();
+		KQCode immutable = mutable.immutable();
+		iterator.remove();
+		while (iterator.hasNext()) {
+			iterator.next();
+		}
+		check(mutable.size() == expected.size() - 2, "iterator remove", text);
+		check(expected.size() - 1 == immutable.size(), "immutable changed by iterator", text);
+	}
+
+	private static String code(int size) {
+		Map<String, String> params = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++) {
+			params.put("k" + i, "v" + i);
+		}
+		return KQCodeUtils.getInstance().toCq("test", true, params);
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_message_filter.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.CQDecoder;
+import com.simplerobot.modules.utils.CQEncoder;
+import com.simplerobot.modules.utils.CqMessageFilter;
+import com.simplerobot.modules.utils.KQCode;
+import com.simplerobot.modules.utils.KQCodeUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * 测试{@link CqMessageFilter}:
+ * {@link CqMessageFilter#match(String)}的结果与逐个调用{@link CqMessageFilter#matches(String, int)}一致,
+ * 且与通过{@link KQCodeUtils#getKqs}与{@link KQCodeUtils#split}直接判断每个监听器的条件的结果一致。
+ *
+ * 监听器会拥有多个(可能重复的)条件, 参数值与文本前缀中包含需要转义的字符,
+ * 文本前缀会跨过被移除的CQ码。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_message_filter {
+	private static final String[] TYPES = {"at", "image", "face"};
+	private static final String[] VALUES = {"1", "2", "a&b", "[x]", "b]"};
+	private static final String[] TEXTS = {"/he", "llo", "/hello", " ", " /h", "&", "[x]", "a&b", "中"};
+	private static final String[] PREFIXES = {"/h", "/he", "/hello", "/hel", "&[", "[x]a", "中/", "a&b"};
+
+	public static void main(String[] args) {
+		KQCodeUtils utils = KQCodeUtils.getInstance();
+		Random random = new Random(20201018);
+
+		for (int round = 0; round < 300; round++) {
+			CqMessageFilter.Builder builder = CqMessageFilter.builder();
+			int listenerCount = 1 + random.nextInt(60);
+			List<List<Object[]>> conditions = new ArrayList<>();
+			for (int listener = 0; listener < listenerCount; listener++) {
+				List<Object[]> list = new ArrayList<>();
+				builder.listener(listener);
+				int size = random.nextInt(4);
+				for (int i = 0; i < size; i++) {
+					Object[] condition;
+					switch (random.nextInt(3)) {
+						case 0:
+							condition = new Object[]{TYPES[random.nextInt(TYPES.length)]};
+							builder.containsType(listener, (String) condition[0]);
+							break;
+						case 1:
+							condition = new Object[]{TYPES[random.nextInt(TYPES.length)], "v", VALUES[random.nextInt(VALUES.length)]};
+							builder.paramEquals(listener, (String) condition[0], "v", (String) condition[2]);
+							break;
+						default:
+							condition = new Object[]{null, PREFIXES[random.nextInt(PREFIXES.length)]};
+							builder.textStartsWith(listener, (String) condition[1]);
+					}
+					list.add(condition);
+					// 重复的条件
+					if (random.nextInt(8) == 0) {
+						list.add(condition);
+					}
+				}
+				conditions.add(list);
+			}
+			CqMessageFilter filter = builder.build();
+			check(filter.getListenerCount() == listenerCount, "listenerCount", filter.toString());
+
+			for (int m = 0; m < 50; m++) {
+				String text = message(random);
+				List<KQCode> codes = utils.getKqs(text);
+				String remain = remain(utils, text);
+				BitSet matched = filter.match(text);
+				BitSet reused = filter.match(text, new BitSet());
+				check(matched.equals(reused), "match(text, out)", text);
+				for (int listener = 0; listener < listenerCount; listener++) {
+					boolean expected = true;
+					for (Object[] condition : conditions.get(listener)) {
+						expected &= test(condition, codes, remain);
+					}
+					check(matched.get(listener) == expected, "match listener " + listener, text);
+					check(filter.matches(text, listener) == expected, "matches listener " + listener, text);
+				}
+			}
+		}
+		System.out.println("message filter: ok");
+	}
+
+	/**
+	 * 直接判断一个条件
+	 */
+	private static boolean test(Object[] condition, List<KQCode> codes, String remain) {
+		if (condition[0] == null) {
+			return remain.startsWith((String) condition[1]);
+		}
+		for (KQCode code : codes) {
+			if (code.getType().equals(condition[0]) && (condition.length == 1 || condition[2].equals(code.get(condition[1])))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 移除CQ码后反转义的文本, 每一段文本都去除首尾的空白
+	 */
+	private static String remain(KQCodeUtils utils, String text) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : utils.split(text)) {
+			if (!s.startsWith("[CQ:")) {
+				sb.append(s.trim());
+			}
+		}
+		return CQDecoder.getInstance().decodeText(sb.toString());
+	}
+
+	private static String message(Random random) {
+		KQCodeUtils utils = KQCodeUtils.getInstance();
+		StringBuilder msg = new StringBuilder();
+		int parts = random.nextInt(6);
+		for (int i = 0; i < parts; i++) {
+			if (random.nextBoolean()) {
+				msg.append(CQEncoder.getInstance().encodeText(TEXTS[random.nextInt(TEXTS.length)]));
+			} else {
+				String type = TYPES[random.nextInt(TYPES.length)];
+				if (random.nextBoolean()) {
+					msg.append(utils.toCq(type, true, Collections.singletonMap("v", VALUES[random.nextInt(VALUES.length)])));
+				} else {
+					msg.append(utils.toCq(type, true, Collections.singletonMap("qq", "1")));
+				}
+			}
+		}
+		return msg.toString();
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
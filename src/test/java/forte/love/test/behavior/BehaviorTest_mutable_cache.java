@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_mutable_cache.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.KQCode;
+import com.simplerobot.modules.utils.MutableKQCode;
+import com.simplerobot.modules.utils.codes.MapKQCode;
+import com.simplerobot.modules.utils.codes.MutableMapKQCode;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ *
+ * 测试{@link MutableMapKQCode}的toString缓存:
+ * 无论通过哪一种方式修改参数(包括在toString之前就得到的视图与迭代器), 之后的toString都与参数一致;
+ * 没有修改时则不会重新拼接。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_mutable_cache {
+
+	public static void main(String[] args) {
+		String small = "[CQ:at,qq=1,x=2]";
+		String big = "[CQ:test,a=1,b=2,c=3,d=4,e=5,f=6,g=7,h=8,i=9,x=10]";
+		for (String text : new String[]{small, big}) {
+			checkWrite(text, code -> code.put("x", "999"));
+			checkWrite(text, code -> code.getParams().put("x", "999"));
+			checkWrite(text, code -> code.getParams().remove("x"));
+			checkWrite(text, code -> code.remove("x"));
+			checkWrite(text, Map::clear);
+			checkWrite(text, code -> code.setType("other"));
+
+			// toString之前得到的视图
+			checkView(text, Map::keySet, (Set<String> keys) -> keys.remove("x"));
+			checkView(text, Map::keySet, (Set<String> keys) -> keys.retainAll(java.util.Collections.singleton("x")));
+			checkView(text, Map::values, Collection::clear);
+			checkView(text, Map::entrySet, (Set<Map.Entry<String, String>> entries) -> entries.iterator().next().setValue("&[]"));
+			checkView(text, Map::entrySet, (Set<Map.Entry<String, String>> entries) -> {
+				Iterator<Map.Entry<String, String>> iterator = entries.iterator();
+				iterator.next();
+				iterator.remove();
+			});
+
+			// 没有修改时不会重新拼接
+			MutableMapKQCode code = MapKQCode.mutableByCode(text);
+			String first = code.toString();
+			code.keySet();
+			code.entrySet().iterator().next();
+			code.remove("not-exists");
+			check(first == code.toString(), "toString is not cached", text);
+
+			// 与保留了原始字符串的不可变实例共享记录
+			KQCode kept = MapKQCode.byCode(text, true, true);
+			MutableKQCode mutable = kept.mutable();
+			check(mutable.toString() == kept.toString(), "text is not shared", text);
+			mutable.put("x", "a&b");
+			check("a&amp;b".equals(mutable.getNoDecode("x")), "getNoDecode after put", text);
+			check(mutable.toString().contains(",x=a&amp;b"), "toString after put", text);
+			check(kept.toString().equals(text), "kept changed", text);
+		}
+		System.out.println("mutable cache: ok");
+	}
+
+	/**
+	 * 先toString, 再通过[write]修改
+	 */
+	private static void checkWrite(String text, Consumer<MutableMapKQCode> write) {
+		MutableMapKQCode code = MapKQCode.mutableByCode(text);
+		check(code.toString().equals(text), "initial toString", text);
+		write.accept(code);
+		checkText(code, text);
+	}
+
+	/**
+	 * 先得到视图, 再toString, 之后通过视图修改
+	 */
+	private static <V> void checkView(String text, java.util.function.Function<MutableMapKQCode, V> view, Consumer<V> write) {
+		MutableMapKQCode code = MapKQCode.mutableByCode(text);
+		V v = view.apply(code);
+		check(code.toString().equals(text), "initial toString", text);
+		write.accept(v);
+		check(!code.toString().equals(text), "view write ignored", text);
+		checkText(code, text);
+	}
+
+	/**
+	 * toString与当前的参数一致
+	 */
+	private static void checkText(MutableMapKQCode code, String text) {
+		String expected = MapKQCode.byMap(code.getType(), code).toString();
+		check(code.toString().equals(expected), "stale toString, expected " + expected + " but " + code, text);
+		check(code.length() == expected.length(), "stale length", text);
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
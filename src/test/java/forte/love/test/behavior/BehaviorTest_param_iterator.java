@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_param_iterator.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.CQDecoder;
+import com.simplerobot.modules.utils.CqParamCursor;
+import com.simplerobot.modules.utils.KQCode;
+import com.simplerobot.modules.utils.KQCodeUtils;
+import com.simplerobot.modules.utils.codes.FastKQCode;
+import kotlin.Pair;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * 测试消息与参数的各种迭代方式是否与直接切割字符串的结果一致:
+ * - {@link KQCodeUtils#getCqs}、{@link KQCodeUtils#getCqIter}与{@link KQCodeUtils#getKqs}与{@link KQCodeUtils#split}中的CQ码一致,
+ * - {@link KQCodeUtils#getCqKeyIter}、{@link KQCodeUtils#getCqValueIter}、{@link KQCodeUtils#getCqPairIter}、
+ *   {@link CqParamCursor}以及{@link FastKQCode}的迭代与以`,`切割参数、再以第一个`=`切割键值的结果一致。
+ *   不存在`=`的参数会被跳过。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_param_iterator {
+	private static final String[] TEXTS = {"hello", "&amp;", "&#91;x&#93;", " ", "中文", "a=b,c"};
+	private static final String[] TYPES = {"at", "image", "face"};
+	private static final String[] PARAMS = {"qq=1", "file=a.jpg", "url=http://a?b=c&amp;d=e", "flag", "v=&#44;&#91;&#93;", "empty=", "=novalue"};
+
+	public static void main(String[] args) {
+		KQCodeUtils utils = KQCodeUtils.getInstance();
+		Random random = new Random(20201018);
+
+		for (int round = 0; round < 5000; round++) {
+			StringBuilder msg = new StringBuilder();
+			List<String> codes = new ArrayList<>();
+			int parts = random.nextInt(6);
+			for (int i = 0; i < parts; i++) {
+				if (random.nextBoolean()) {
+					msg.append(TEXTS[random.nextInt(TEXTS.length)]);
+				} else {
+					StringBuilder code = new StringBuilder("[CQ:").append(TYPES[random.nextInt(TYPES.length)]);
+					int params = random.nextInt(5);
+					for (int p = 0; p < params; p++) {
+						code.append(',').append(PARAMS[random.nextInt(PARAMS.length)]);
+					}
+					code.append(']');
+					codes.add(code.toString());
+					msg.append(code);
+				}
+			}
+			String text = msg.toString();
+
+			List<String> split = utils.split(text);
+			check(String.join("", split).equals(text), "split join", text);
+			List<String> splitCodes = new ArrayList<>();
+			for (String s : split) {
+				if (s.startsWith("[CQ:")) {
+					splitCodes.add(s);
+				}
+			}
+			check(splitCodes.equals(codes), "split codes", text);
+			check(utils.getCqs(text).equals(codes), "getCqs", text);
+
+			List<String> iterCodes = new ArrayList<>();
+			utils.getCqIter(text).forEachRemaining(iterCodes::add);
+			check(iterCodes.equals(codes), "getCqIter", text);
+
+			List<KQCode> kqs = utils.getKqs(text);
+			check(kqs.size() == codes.size(), "getKqs size", text);
+			for (int i = 0; i < kqs.size(); i++) {
+				check(kqs.get(i).toString().equals(codes.get(i)), "getKqs toString", text);
+			}
+
+			for (String code : codes) {
+				checkParams(utils, code);
+			}
+		}
+		System.out.println("param iterator: ok");
+	}
+
+	/**
+	 * 以切割字符串的方式得到参数, 与各种迭代方式的结果进行比较
+	 */
+	private static void checkParams(KQCodeUtils utils, String code) {
+		CQDecoder decoder = CQDecoder.getInstance();
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		List<String> rawValues = new ArrayList<>();
+		String[] split = code.substring(4, code.length() - 1).split(",", -1);
+		for (int i = 1; i < split.length; i++) {
+			int kv = split[i].indexOf('=');
+			if (kv >= 0) {
+				keys.add(split[i].substring(0, kv));
+				rawValues.add(split[i].substring(kv + 1));
+				values.add(decoder.decodeParams(split[i].substring(kv + 1)));
+			}
+		}
+
+		check(keys.equals(toList(utils.getCqKeyIter(code))), "getCqKeyIter", code);
+		check(values.equals(toList(utils.getCqValueIter(code))), "getCqValueIter", code);
+		List<Pair<String, String>> pairs = toList(utils.getCqPairIter(code));
+		check(pairs.size() == keys.size(), "getCqPairIter size", code);
+		for (int i = 0; i < pairs.size(); i++) {
+			check(pairs.get(i).getFirst().equals(keys.get(i)) && pairs.get(i).getSecond().equals(values.get(i)), "getCqPairIter", code);
+		}
+
+		CqParamCursor cursor = utils.getCqParamCursor(code);
+		int i = 0;
+		while (cursor.next()) {
+			check(i < keys.size(), "cursor size", code);
+			check(cursor.key().equals(keys.get(i)) && cursor.keyEquals(keys.get(i)), "cursor key", code);
+			check(cursor.value().equals(rawValues.get(i)) && cursor.valueEquals(rawValues.get(i)), "cursor value", code);
+			check(cursor.decodedValue().equals(values.get(i)), "cursor decodedValue", code);
+			i++;
+		}
+		check(i == keys.size(), "cursor size", code);
+
+		FastKQCode fast = FastKQCode.byCode(code);
+		check(fast.size() == keys.size(), "fast size", code);
+		i = 0;
+		for (Map.Entry<String, String> entry : fast.entrySet()) {
+			check(entry.getKey().equals(keys.get(i)) && entry.getValue().equals(values.get(i)), "fast entry", code);
+			i++;
+		}
+		check(i == keys.size(), "fast entries size", code);
+	}
+
+	private static <T> List<T> toList(Iterator<T> iterator) {
+		List<T> list = new ArrayList<>();
+		iterator.forEachRemaining(list::add);
+		return list;
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
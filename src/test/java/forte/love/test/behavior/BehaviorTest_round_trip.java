@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_round_trip.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.CQEncoder;
+import com.simplerobot.modules.utils.KQCode;
+import com.simplerobot.modules.utils.KQCodeUtils;
+import com.simplerobot.modules.utils.codes.FastKQCode;
+import com.simplerobot.modules.utils.codes.MapKQCode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * 测试CQ码字符串的拼接与解析是否可以相互还原:
+ * 通过{@link KQCodeUtils#toCq(String, boolean, Map)}拼接的CQ码,
+ * 经过{@link MapKQCode}与{@link FastKQCode}解析后参数与原本一致, 且toString与原本的字符串相同。
+ *
+ * 参数的数量会跨过{@link MapKQCode}以数组保存参数的阈值。
+ * 值中不包含`,`与空格, 因为`,`不会被转义, 而`,`两侧的空格在解析时会被忽略。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_round_trip {
+	private static final String CHARS = "ab1&[]=\t\r\n中;#";
+
+	public static void main(String[] args) {
+		KQCodeUtils utils = KQCodeUtils.getInstance();
+		CQEncoder encoder = CQEncoder.getInstance();
+		Random random = new Random(20201018);
+
+		for (int round = 0; round < 2000; round++) {
+			int size = round % 13;
+			Map<String, String> params = new LinkedHashMap<>();
+			for (int i = 0; i < size; i++) {
+				params.put("k" + i, randomValue(random));
+			}
+			String text = utils.toCq("test", true, params);
+
+			MapKQCode map = MapKQCode.byCode(text);
+			check(map.getType().equals("test"), "map type", text);
+			check(new LinkedHashMap<>(map).equals(params), "map params", text);
+			check(map.toString().equals(text), "map toString", text);
+
+			MapKQCode kept = MapKQCode.byCode(text, true, true);
+			check(kept.equals(map), "kept params", text);
+			check(kept.toString() == text, "kept toString", text);
+
+			FastKQCode fast = FastKQCode.byCode(text);
+			check(fast.getType().equals("test"), "fast type", text);
+			check(fast.size() == size, "fast size", text);
+			check(new LinkedHashMap<>(fast).equals(params), "fast params", text);
+			check(fast.toString().equals(text), "fast toString", text);
+
+			for (Map.Entry<String, String> entry : params.entrySet()) {
+				String encoded = encoder.encodeParams(entry.getValue());
+				check(encoded.equals(map.getNoDecode(entry.getKey())), "map getNoDecode", text);
+				check(encoded.equals(kept.getNoDecode(entry.getKey())), "kept getNoDecode", text);
+				check(encoded.equals(fast.getNoDecode(entry.getKey())), "fast getNoDecode", text);
+			}
+
+			check(MapKQCode.byMap("test", params).toString().equals(text), "byMap toString", text);
+			check(MapKQCode.mutableByCode(text).toString().equals(text), "mutableByCode toString", text);
+			check(MapKQCode.byCode(fast.toString()).equals(map), "fast -> map", text);
+			check(map.mutable().immutable().toString().equals(text), "mutable -> immutable", text);
+		}
+
+		// 不存在`=`的参数在所有的构建方式中都会被忽略
+		String flag = "[CQ:at,qq=1,flag]";
+		check(MapKQCode.byCode(flag).size() == 1, "byCode without '='", flag);
+		check(MapKQCode.byParamString("at", "qq=1", "flag").size() == 1, "byParamString without '='", flag);
+		check(MapKQCode.mutableByCode(flag).size() == 1, "mutableByCode without '='", flag);
+		check(FastKQCode.byCode(flag).size() == 1, "fast without '='", flag);
+		KQCode empty = KQCode.ofType("atall");
+		check(MapKQCode.byCode(empty.toString()).isEmpty(), "empty code", empty.toString());
+
+		System.out.println("round trip: ok");
+	}
+
+	private static String randomValue(Random random) {
+		int length = random.nextInt(8);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+		}
+		return sb.toString();
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
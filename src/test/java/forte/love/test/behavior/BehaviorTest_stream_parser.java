@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2020. ForteScarlet All rights reserved.
+ * Project  mod-cqcodeutils
+ * File     BehaviorTest_stream_parser.java
+ *
+ * You can contact the author through the following channels:
+ * github https://github.com/ForteScarlet
+ * gitee  https://gitee.com/ForteScarlet
+ * email  ForteScarlet@163.com
+ * QQ     1149159218
+ *
+ */
+
+package forte.love.test.behavior;
+
+import com.simplerobot.modules.utils.CqChunkParser;
+import com.simplerobot.modules.utils.CqEventHandler;
+import com.simplerobot.modules.utils.CqStreamParser;
+
+import java.io.Reader;
+import java.util.Random;
+
+/**
+ *
+ * 测试{@link CqStreamParser}与{@link CqChunkParser}:
+ * 对完整的消息使用{@link CqStreamParser#parse(CharSequence)}、
+ * 以每次只读取少量字符的{@link Reader}使用{@link CqStreamParser#parse(Reader)}、
+ * 以及将消息切分为任意片段后使用{@link CqChunkParser#feed}与{@link CqChunkParser#finish()},
+ * 得到的事件序列一致(连续的文本事件合并后比较)。
+ *
+ * 消息由CQ码头、转义符与CQ码的片段随机拼接而成, 因此CQ码头、转义符与CQ码会被切分在窗口与片段的边界上,
+ * 也会存在嵌套的CQ码头与没有结尾的CQ码头。
+ * 另外测试未结束的CQ码超过{@code maxCodeLength}时会被当作文本推送, 以及被保留的内容不会超过需要的长度。
+ *
+ * 不满足时抛出{@link AssertionError}。
+ *
+ * @author ForteScarlet
+ */
+public class BehaviorTest_stream_parser {
+	private static final String[] PARTS = {"[CQ:", "[CQ:at", ",qq=1", "]", "&#91;", "&#93;", "&amp;", "&#44;", "a", "bc", "[", ",", "=", "x=y", " ", "[C", "Q:", "&", "中"};
+
+	public static void main(String[] args) {
+		Random random = new Random(20201018);
+		Recorder recorder = new Recorder();
+		CqStreamParser full = new CqStreamParser(recorder);
+		CqStreamParser stream = new CqStreamParser(recorder, 16);
+		CqChunkParser chunk = new CqChunkParser(recorder);
+
+		for (int round = 0; round < 20000; round++) {
+			StringBuilder msg = new StringBuilder();
+			int parts = random.nextInt(24);
+			for (int i = 0; i < parts; i++) {
+				msg.append(PARTS[random.nextInt(PARTS.length)]);
+			}
+			String text = msg.toString();
+
+			full.parse(text);
+			String expected = recorder.take();
+
+			stream.parse(new SlowReader(text, 1 + random.nextInt(5)));
+			check(recorder.take().equals(expected), "parse(Reader)", text);
+
+			for (int i = 0; i < text.length(); ) {
+				int end = Math.min(text.length(), i + 1 + random.nextInt(6));
+				chunk.feed(text, i, end);
+				i = end;
+			}
+			chunk.finish();
+			check(recorder.take().equals(expected), "feed(CharSequence)", text);
+
+			char[] chars = text.toCharArray();
+			for (int i = 0; i < chars.length; ) {
+				int length = Math.min(chars.length - i, 1 + random.nextInt(6));
+				chunk.feed(chars, i, length);
+				i += length;
+			}
+			chunk.finish();
+			check(recorder.take().equals(expected), "feed(char[])", text);
+		}
+
+		// 被切分的CQ码头与转义符会被保留, 其余的内容会被立即推送
+		String text = "ab[CQ:at,qq=1]&#9";
+		chunk.feed("ab[C");
+		check(recorder.take().equals("T(ab)") && chunk.getPendingLength() == 2, "held head", text);
+		chunk.feed("Q:at,q");
+		check(recorder.take().isEmpty() && chunk.getPendingLength() == 8, "held code", text);
+		chunk.feed("q=1]&#9");
+		check(recorder.take().equals("C(at,qq=1)") && chunk.getPendingLength() == 3, "held escape", text);
+		chunk.feed("1;");
+		chunk.finish();
+		check(recorder.take().equals("T([)") && chunk.getPendingLength() == 0, "finish", text);
+
+		// 超过maxCodeLength仍未结束的CQ码会被当作文本推送
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			longValue.append('x');
+		}
+		String longCode = "[CQ:image,file=" + longValue + "]";
+		CqStreamParser limited = new CqStreamParser(recorder, 16, 32);
+		limited.parse(new SlowReader(longCode + "tail[CQ:at,qq=1]", 7));
+		check(recorder.take().equals("T(" + longCode + "tail)C(at,qq=1)"), "maxCodeLength", longCode);
+		limited.parse(longCode);
+		check(recorder.take().equals("C(image,file=" + longValue + ")"), "maxCodeLength parse(String)", longCode);
+
+		System.out.println("stream parser: ok");
+	}
+
+	/**
+	 * 将事件记录为字符串, 连续的文本会被合并
+	 */
+	private static class Recorder implements CqEventHandler {
+		private final StringBuilder events = new StringBuilder();
+		private final StringBuilder text = new StringBuilder();
+
+		@Override
+		public void onText(CharSequence text) {
+			this.text.append(text);
+		}
+
+		@Override
+		public void onCodeStart(CharSequence type) {
+			flushText();
+			events.append("C(").append(type);
+		}
+
+		@Override
+		public void onParam(CharSequence key, CharSequence value) {
+			events.append(',').append(key).append('=').append(value);
+		}
+
+		@Override
+		public void onCodeEnd() {
+			events.append(')');
+		}
+
+		private void flushText() {
+			if (text.length() > 0) {
+				events.append("T(").append(text).append(')');
+				text.setLength(0);
+			}
+		}
+
+		String take() {
+			flushText();
+			String result = events.toString();
+			events.setLength(0);
+			return result;
+		}
+	}
+
+	/**
+	 * 每次最多只读取[max]个字符的[Reader]
+	 */
+	private static class SlowReader extends Reader {
+		private final String text;
+		private final int max;
+		private int pos;
+
+		SlowReader(String text, int max) {
+			this.text = text;
+			this.max = max;
+		}
+
+		@Override
+		public int read(char[] buf, int off, int len) {
+			if (pos >= text.length()) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, max), text.length() - pos);
+			text.getChars(pos, pos + n, buf, off);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static void check(boolean condition, String name, String text) {
+		if (!condition) {
+			throw new AssertionError(name + ": " + text);
+		}
+	}
+}
@@ -62,6 +62,10 @@ public class PerformanceTest_long_get {
 			395	:	16	(1000000)
 			338	:	13	(1000000)
 			331	:	12	(1000000)
+			—————————————————————————— fast中追加了参数偏移表与键hash表后
+			50	:	56	(1,000,000)
+			64	:	89	(1,000,000)
+			57	:	52	(1,000,000)
 
 		 */
 
@@ -61,6 +61,12 @@ public class PerformanceTest_short_get {
 			3617	:	23	(10,000,000)
 			3847	:	22	(10,000,000)
 			// 依然很拉跨，没有明显改善
+
+			—————————————————————————— fast中追加了参数偏移表后
+
+			202	:	44	(10,000,000)
+			193	:	38	(10,000,000)
+			210	:	50	(10,000,000)
 		 */
 
 